@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Grid geometry shared between the TMAs of one batch (same scanner run, so a similar rotation, pitch and shear).
+ * Learnt from the first few TMAs by name (the learners), which are matched in parallel like any other TMA but don't
+ * use the prior themselves. Once they have all finished the prior is fixed from the medians of what they found, so
+ * it (and the results which use it) doesn't depend on which learner a thread pool happens to finish first. It is
+ * then the starting point for the rest:
+ * - autoRotate starts its search from the learnt angle instead of zero
+ * - the projection fast path tries the learnt angle and pitch before measuring its own from the nearest neighbours
+ * - expectedMatrix applies the learnt shear
+ * Each TMA still checks the prior fits (and falls back to its own estimate when it doesn't), so one unusual TMA
+ * can't spoil the rest of the batch.
+ *
+ * How to use:
+ * Share one object between the TMAs of a batch before matching them (safe to use from several threads):
+ * - GeometryPrior prior = new GeometryPrior()
+ * - TMA.prior = prior
+ * - prior.expect(GeometryPrior.learners(TMAs.keySet()).size())
+ * Match the learners (in any order or in parallel), calling this after each, even if it failed. The last one fixes
+ * the prior:
+ * - prior.learnerFinished()
+ * Match the other TMAs only once the prior is fixed:
+ * - prior.awaitFixed()
+ * A learner matched in an earlier run can give back what it found (TMA.priorSample, saved with GeometryPrior.format)
+ * instead of being matched again:
+ * - prior.learn(GeometryPrior.parse(saved))
+ * - prior.learnerFinished()
+ * Read how many TMAs it helped (each TMA counted once):
+ * - prior.summary()
+ */
+
+class GeometryPrior {
+	static final int SAMPLES = 5;		// TMAs learnt from before the prior is fixed
+
+	private final ArrayList<Double> angles = new ArrayList<Double>();	// Degrees, as PointMatrix.rotation
+	private final ArrayList<Double> pitches = new ArrayList<Double>();	// Pixels between neighbouring cores
+	private final ArrayList<Double> shears = new ArrayList<Double>();	// Column offset per pixel down the grid
+	private volatile double angle;
+	private volatile double pitch;
+	private volatile double shear;
+	private volatile boolean hasAngle = false;	// Only set when fixed, so the learners never use the prior
+	private volatile boolean hasGrid = false;
+	private boolean fixed = false;		// Set once the learners have finished, later samples are ignored
+	private int learnersLeft = 0;
+	AtomicInteger used = new AtomicInteger();	// TMAs where the prior was accepted
+
+	// The TMAs to learn from: the first SAMPLES names in order
+	public static List<String> learners(Collection<String> TMAnames) {
+		ArrayList<String> sorted = new ArrayList<String>(TMAnames);
+		Collections.sort(sorted);
+		return sorted.subList(0, Math.min(SAMPLES, sorted.size()));
+	}
+
+	// Set the number of learners which will report before the prior is fixed (fixed straight away if there are none)
+	public synchronized void expect(int learners) {
+		learnersLeft = learners;
+		if (learners==0) {
+			fix();
+		}
+	}
+
+	// Add what a learner found: {angle, pitch, shear}. Pitch and shear are only known when the projection fast path
+	// was used (pitch = 0 otherwise)
+	public synchronized void learn(double[] sample) {
+		if (fixed) {
+			return;
+		}
+		if (angles.size()<SAMPLES) {
+			angles.add(sample[0]);
+		}
+		if (sample[1]>0 && pitches.size()<SAMPLES) {
+			pitches.add(sample[1]);
+			shears.add(sample[2]);
+		}
+	}
+
+	// A learner has been matched (or failed), the last one fixes the prior
+	public synchronized void learnerFinished() {
+		if (--learnersLeft==0) {
+			fix();
+		}
+	}
+
+	// Wait until the prior is fixed
+	public synchronized void awaitFixed() throws InterruptedException {
+		while (!fixed) {
+			wait();
+		}
+	}
+
+	// Stop learning and take the medians of the samples (which don't depend on the order they arrived in), so the
+	// TMAs matched in parallel afterwards all see the same prior
+	public synchronized void fix() {
+		if (fixed) {
+			return;
+		}
+		if (!angles.isEmpty()) {
+			angle = median(angles);
+			hasAngle = true;
+		}
+		if (!pitches.isEmpty()) {
+			pitch = median(pitches);
+			shear = median(shears);
+			hasGrid = true;
+		}
+		fixed = true;
+		notifyAll();
+	}
+
+	public boolean hasAngle() {
+		return hasAngle;
+	}
+	// Angle, pitch and shear are all known
+	public boolean hasGrid() {
+		return hasGrid;
+	}
+	public double getAngle() {
+		return angle;
+	}
+	public double getPitch() {
+		return pitch;
+	}
+	public double getShear() {
+		return shear;
+	}
+
+	public String summary() {
+		return used.get()+" TMAs used the batch geometry prior ("+String.format("%.2f", angle)+" degrees"+(hasGrid ? ", pitch "+String.format("%.1f", pitch)+", shear "+String.format("%.4f", shear) : "")+")";
+	}
+
+	// A learner's sample as tab separated text (exactly, so a restarted batch learns the same prior) and back
+	public static String format(double[] sample) {
+		return sample[0]+"\t"+sample[1]+"\t"+sample[2];
+	}
+	public static double[] parse(String text) {
+		String[] values = text.split("\t");
+		return new double[] {Double.parseDouble(values[0]), Double.parseDouble(values[1]), Double.parseDouble(values[2])};
+	}
+
+	private static double median(ArrayList<Double> values) {
+		ArrayList<Double> sorted = new ArrayList<Double>(values);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size()/2);
+	}
+}
@@ -1,5 +1,6 @@
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
 
 /*
  * Class to calculate an optimal alignment between expected and actual TMA grid locations
@@ -16,9 +17,13 @@ import java.util.ArrayList;
  * - setDistances(int[][] matrix1, int[][] matrix2)
  * Add dummy entries if a matrix is missing entries so each entry can be matched up:
  * - addFakePoints()
+ * Optionally limit the time spent (timedOut is set if the limit is reached):
+ * - setDeadline(long nanoTime)
  * Calculate the alignment:
  * - calcMatrices()
  * Alignment results can be read from the matchedArray within the class object.
+ * The matrices are kept for the next run (see retainedBytes), drop them when the object is no longer needed:
+ * - releaseBuffers()
  */
 
 public class HungarianMatch {
@@ -32,6 +37,12 @@ public class HungarianMatch {
 	int[] colCovered;		// Arrays to keep track of which rows/columns are 'covered' by current assignment
 	int[] rowCovered;
 	int[][] zeroMatrix;		// Keep track of starred and primed zeros (starred = pre-assigned = 1, primed = alternate = 1)
+	int[][] distanceBuffer;	// Matrices kept between runs so a pooled object can reuse them when the size is unchanged
+	int[][] paddedBuffer;
+	long deadline = Long.MAX_VALUE;	// System.nanoTime() after which calcMatrices gives up
+	boolean timedOut;		// Set if calcMatrices stopped at the deadline (assignments are then incomplete)
+	int heldPermits = 0;		// Heap budget held for the kept matrices (see MatchPlanner.release)
+	Semaphore heldFrom = null;	// Budget the permits were taken from
 
 	// Construct the object and set/update the input values
 	public HungarianMatch() {
@@ -41,6 +52,10 @@ public class HungarianMatch {
 		// Return the results
 		return matchedArray;
 	}
+	public void setDeadline(long deadline) {
+		// Time (System.nanoTime) to stop calculating, Long.MAX_VALUE for no limit
+		this.deadline = deadline;
+	}
 	public void setMatrix(int[][] matrix) {
 		// Set a matrix to use
 		this.distanceMatrix = matrix;
@@ -51,7 +66,8 @@ public class HungarianMatch {
 		double distance;
 
 		// Calculate distance between 2 points:
-		distanceMatrix = new int[matrix1[0].length][matrix2[0].length];	// Matrix with cell for for each point pairing
+		distanceBuffer = reuseMatrix(distanceBuffer,matrix1[0].length,matrix2[0].length);	// Matrix with cell for for each point pairing
+		distanceMatrix = distanceBuffer;
 		//System.out.println("Distance matrix size: "+matrix1[0].length+","+matrix2[0].length);
 		for (int i=0; i<distanceMatrix.length; i++){
 			for (int j=0; j<distanceMatrix[0].length; j++){	// Iterate through every item in the distance matrix
@@ -75,7 +91,11 @@ public class HungarianMatch {
 		// Note: In theory these points should be the only match where there is no other possible alignments. But may want to ensure real points take priority.
 		// Note2: Should still work without this adjustment if smallest of row/columns used in later step
 		int matrixSize = Math.max(distanceMatrix.length,distanceMatrix[0].length);
-		int[][] distanceMatrixNew = new int[matrixSize][matrixSize];	// Matrix with cell for for each point pairing
+		if (distanceMatrix.length==distanceMatrix[0].length) {
+			return;		// Already balanced
+		}
+		paddedBuffer = reuseMatrix(paddedBuffer,matrixSize,matrixSize);	// Matrix with cell for for each point pairing
+		int[][] distanceMatrixNew = paddedBuffer;
 		//for (int[] row : distanceMatrixNew)
 		//	Arrays.fill(row, Integer.MAX_VALUE);			// Set the distance to the maximum possible	
 		// Add to new matrix values from the existing matrix:
@@ -122,10 +142,10 @@ public class HungarianMatch {
 	}
 	public void calcMatrices() {
 		// Initialise values:
+		timedOut = false;
 		scoringMatrix = copyMatrices(distanceMatrix);
-		int [][] intersectMatrix = new int[scoringMatrix.length][scoringMatrix[0].length];
-		zeroMatrix = new int[scoringMatrix.length][scoringMatrix[0].length];
-		intersectionMatrix = intersectMatrix;
+		intersectionMatrix = reuseMatrix(intersectionMatrix,scoringMatrix.length,scoringMatrix[0].length);
+		zeroMatrix = reuseMatrix(zeroMatrix,scoringMatrix.length,scoringMatrix[0].length);
 		// Process matrix:
 		rowReduction();
 		colReduction();		        // The version of the algorithm followed in this version often omits this step
@@ -133,8 +153,14 @@ public class HungarianMatch {
 		starZeros();			    // Produce an initial selection of 'starred' zeros
 		int optimal = 0;
 		optimal = optimalMatrix();	// If there is a 'starred' zero in each column matrix is complete
-		int counter = 1000;		    // Failsafe counter to prevent never ending loops occuring in case of an issue with the code.
+		// Failsafe counter to prevent never ending loops occuring in case of an issue with the code.
+		// Each pass primes one zero, which can be needed up to once per cell on large grids with many equal distances
+		int counter = Math.max(1000, 2*scoringMatrix.length*scoringMatrix[0].length);
 		while (optimal==0 && counter>0) {
+			if (System.nanoTime()>deadline) {
+				timedOut = true;	// Out of time - return the assignments found so far
+				break;
+			}
 			// If no zeros to prime - update matrix
 			int[] curZero = findUncoveredZero();		// Returned array: [Row;Col;ZeroFoundFlag]
 			if (curZero[2]==0) {
@@ -157,7 +183,7 @@ public class HungarianMatch {
 	}
 	private int[][] copyMatrices(int[][] arrayIn) {
 		// Tried using clone and arraycopy but without success - so writing our own code to copy the matrices
-		int[][] arrayOut = new int[arrayIn.length][arrayIn[0].length];
+		int[][] arrayOut = reuseMatrix(scoringMatrix,arrayIn.length,arrayIn[0].length);
 		// Add to new matrix values from the source matrix:
 		for (int i=0; i<arrayIn.length; i++) {
 			for (int j=0; j<arrayIn[0].length; j++) {
@@ -166,6 +192,35 @@ public class HungarianMatch {
 		}
 		return arrayOut;
 	}
+	// Memory used by the matrices kept between runs
+	public long retainedBytes() {
+		return matrixBytes(distanceBuffer)+matrixBytes(paddedBuffer)+matrixBytes(scoringMatrix)+matrixBytes(intersectionMatrix)+matrixBytes(zeroMatrix);
+	}
+	private static long matrixBytes(int[][] matrix) {
+		if (matrix==null || matrix.length==0) {
+			return 0;
+		}
+		return matrix.length*(4L*matrix[0].length+16);	// Each row is an array with its own header
+	}
+	// Drop the kept matrices
+	public void releaseBuffers() {
+		distanceMatrix = null;
+		distanceBuffer = null;
+		paddedBuffer = null;
+		scoringMatrix = null;
+		intersectionMatrix = null;
+		zeroMatrix = null;
+	}
+	// Return a zeroed matrix of the requested size, reusing the existing one if it is already that size
+	private static int[][] reuseMatrix(int[][] existing, int rows, int cols) {
+		if (existing!=null && existing.length==rows && existing[0].length==cols) {
+			for (int[] row : existing) {
+				Arrays.fill(row,0);
+			}
+			return existing;
+		}
+		return new int[rows][cols];
+	}
 	// Create an initial selection of optimal assignments
 	private void starZeros() {
 		// colCovered and rowCovered - global arrays tracking the algorithm
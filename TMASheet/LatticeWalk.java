@@ -0,0 +1,683 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/*
+ * Matching for arrays with local warping that no single grid fits (so the expected grid of the other engines is
+ * wrong in places). Instead of comparing every core with a global grid, the cores are linked to their neighbours:
+ * - Estimate the two lattice steps (along a row and down a column) from the nearest neighbours, then refine them
+ *   with a least squares fit to every neighbour offset
+ * - Starting from a core near the centre, walk to neighbouring cores best fit first (priority queue), giving each
+ *   its column/row from the step taken. Each walked core's position and steps are fitted (least squares) to the
+ *   walked cores around it, held close to the global steps, so the steps follow the warping but a few jittered
+ *   cores can't throw the walk off
+ * - Place the walked columns/rows in the grid, and predict the positions of the empty cells from their neighbours
+ * - Cores not reached or sharing a cell are assigned to nearby free cells with small Munkres solves (one per group
+ *   of cores competing for the same cells), and any still left over to the closest free cell anywhere
+ * Each core is only compared with its neighbours, so the time grows as n log n rather than n^3. If a group of
+ * competing cores is too large for a small solve, or the deadline passes, the TMA is matched greedily instead
+ * (to the walked lattice if there is one) and marked degraded.
+ *
+ * How to use:
+ * - PointMatrix.match("lattice", autoRotate, workspace)	(waits for memory and keeps to the time budget, see MatchPlanner)
+ * Or call directly with a System.nanoTime() deadline (Long.MAX_VALUE for none). Returns -1 if there are too few
+ * cores to measure the lattice (arrays this small can't be warped much, so are left to the global engines), the
+ * walk can't follow it or the deadline passed (the TMA is left unmatched):
+ * - LatticeWalk.match(TMA, workspace, deadline)
+ */
+
+class LatticeWalk {
+	static final int NEIGHBOURS = 12;		// Neighbours linked to each core (enough to reach past a missing core)
+	static final int MAX_STEP = 2;			// Lattice steps which can be taken at once (over missing cores)
+	static final double STEP_TOLERANCE = 0.4;	// Fraction of a lattice step a neighbour can be from its predicted position
+	static final double FIT_WEIGHT = 4;		// Weight of the previous steps in each fit (as many cores one step away)
+	static final double MAX_WARP = 0.25;		// Fraction of a step a fitted step can differ from its neighbour's before the fit is ignored
+	static final int LEFTOVER_CANDIDATES = 16;	// Closest free cells considered for each leftover core
+	static final int LEFTOVER_GROUP = 300;		// Most free cells in one leftover Munkres solve (about 1.5MB and 0.1s)
+	static final double MIN_WALKED = 0.5;		// Fraction of the cores the walk must reach, otherwise it's not a lattice
+	static final int DEADLINE_CHECK = 1024;		// Walk steps between checks of the deadline
+	static final int REFINE_ITERATIONS = 3;		// Least squares refinements of the global steps
+	static final int MIN_CORES = 40;		// Fewer and the steps can't be measured reliably from the jittered cores
+
+	public static int match(PointMatrix TMA, HungarianMatch workspace, long deadline) {
+		int cores = TMA.TMAinput.size();
+		int width = TMA.TMAWidth;
+		int height = TMA.TMAHeight;
+		if (cores<MIN_CORES || width<2 || height<2) {
+			return -1;
+		}
+		int[] coreX = new int[cores];
+		int[] coreY = new int[cores];
+		for (int p=0; p<cores; p++) {
+			coreX[p] = TMA.TMAinput.get(p)[0];
+			coreY[p] = TMA.TMAinput.get(p)[1];
+		}
+		PointIndex index = new PointIndex(coreX, coreY);
+		int[][] neighbours = new int[cores][];
+		for (int p=0; p<cores; p++) {
+			neighbours[p] = index.nearest(coreX[p], coreY[p], NEIGHBOURS+1);	// Includes the core itself
+		}
+
+		// Global lattice steps: the rotation from the nearest neighbour directions (angles multiplied by 4 so
+		// directions 90 degrees apart agree), then the median of the closest neighbour offset near each direction
+		double sumCos = 0;
+		double sumSin = 0;
+		for (int p=0; p<cores; p++) {
+			int n = closestOther(neighbours[p], p, coreX, coreY);
+			if (n!=-1) {
+				double angle = Math.atan2(coreY[n]-coreY[p], coreX[n]-coreX[p]);
+				sumCos += Math.cos(4*angle);
+				sumSin += Math.sin(4*angle);
+			}
+		}
+		double angle = Math.atan2(sumSin, sumCos)/4;
+		double[] rowStep = medianStep(neighbours, coreX, coreY, angle);
+		double[] colStep = medianStep(neighbours, coreX, coreY, angle+Math.PI/2);
+		if (rowStep==null || colStep==null) {
+			return -1;
+		}
+		refineSteps(neighbours, coreX, coreY, rowStep, colStep);
+		angle = Math.atan2(rowStep[1], rowStep[0]);
+
+		// Walk from the core closest to the centre
+		int[] sortedX = coreX.clone();
+		int[] sortedY = coreY.clone();
+		Arrays.sort(sortedX);
+		Arrays.sort(sortedY);
+		int seed = index.nearest(sortedX[cores/2], sortedY[cores/2]);
+		int[] column = new int[cores];		// Column/row relative to the seed
+		int[] row = new int[cores];
+		boolean[] walked = new boolean[cores];
+		double[][] fits = new double[cores][];	// Fitted {x, y, rowX, rowY, colX, colY} of each walked core (see localFit)
+		HashMap<Long,Integer> occupied = new HashMap<Long,Integer>();
+		// Candidate steps, ordered by how well they fit (see WalkCandidates.add)
+		WalkCandidates candidates = new WalkCandidates();
+		PriorityQueue<Long> queue = new PriorityQueue<Long>();
+		walked[seed] = true;
+		double[] lattice = {coreX[seed], coreY[seed], rowStep[0], rowStep[1], colStep[0], colStep[1]};
+		fits[seed] = lattice;
+		occupied.put(key(0, 0), seed);
+		addCandidates(seed, neighbours, coreX, coreY, walked, fits, candidates, queue);
+		int polled = 0;
+		while (!queue.isEmpty()) {
+			if (++polled%DEADLINE_CHECK==0 && System.nanoTime()>deadline) {
+				TMA.degraded = true;
+				TMA.degradedReason = "Lattice walk exceeded the "+TMA.timeBudgetMillis+"ms time budget, greedy matching used instead";
+				return -1;
+			}
+			long entry = queue.poll();
+			int candidate = (int)entry;
+			int from = candidates.from[candidate];
+			int to = candidates.to[candidate];
+			if (walked[to]) {
+				continue;
+			}
+			// The fit of the core it was queued from may have changed since, so check the step again and queue it
+			// again if it now fits worse
+			double[] step = stepTo(fits[from], coreX[to], coreY[to]);
+			if (step==null) {
+				continue;
+			}
+			int di = (int)step[0];
+			int dj = (int)step[1];
+			if (di!=candidates.di[candidate] || dj!=candidates.dj[candidate] || (float)step[2]>Float.intBitsToFloat((int)(entry>>>32))) {
+				queue.add(candidates.add(from, to, step));
+				continue;
+			}
+			long cell = key(column[from]+di, row[from]+dj);
+			if (occupied.containsKey(cell)) {
+				continue;	// Another core fits this cell better, left for the leftover solve unless reached another way
+			}
+			if (!agreed(to, from, column[from]+di, row[from]+dj, neighbours, coreX, coreY, column, row, walked, fits)) {
+				continue;	// Most of its walked neighbours put it in another cell, so it may be reached another way
+			}
+			walked[to] = true;
+			column[to] = column[from]+di;
+			row[to] = row[from]+dj;
+			occupied.put(cell, to);
+			// Follow the warping: refit this core and the walked cores around it, which now have another neighbour
+			fits[to] = localFit(to, neighbours, coreX, coreY, column, row, walked, lattice);
+			for (int n : neighbours[to]) {
+				if (n!=to && walked[n]) {
+					fits[n] = localFit(n, neighbours, coreX, coreY, column, row, walked, lattice);
+				}
+			}
+			addCandidates(to, neighbours, coreX, coreY, walked, fits, candidates, queue);
+		}
+
+		// Place the walked columns/rows in the grid: the window of width x height holding the most cores
+		int columnOffset = bestWindow(column, walked, width);
+		int rowOffset = bestWindow(row, walked, height);
+		int cellCount = width*height;
+		int[] cellCore = new int[cellCount];
+		Arrays.fill(cellCore, -1);
+		int[] coreCell = new int[cores];
+		Arrays.fill(coreCell, -1);
+		for (int p=0; p<cores; p++) {
+			int i = column[p]-columnOffset;
+			int j = row[p]-rowOffset;
+			if (walked[p] && i>=0 && i<width && j>=0 && j<height) {
+				coreCell[p] = i*height+j;
+				cellCore[i*height+j] = p;
+			}
+		}
+
+		// Expected positions: the fitted position of each placed core, and the empty cells predicted from their
+		// neighbours (breadth first out from the placed cores)
+		double[] expectedX = new double[cellCount];
+		double[] expectedY = new double[cellCount];
+		double[][] cellSteps = new double[cellCount][];
+		int[] queueCells = new int[cellCount];
+		int queueEnd = 0;
+		for (int cell=0; cell<cellCount; cell++) {
+			if (cellCore[cell]!=-1) {
+				double[] fit = fits[cellCore[cell]];
+				expectedX[cell] = fit[0];
+				expectedY[cell] = fit[1];
+				cellSteps[cell] = fit;
+				queueCells[queueEnd++] = cell;
+			}
+		}
+		if (queueEnd==0 || queueEnd<cores*MIN_WALKED) {
+			return -1;	// Too noisy to follow, leave it to the other engines rather than one huge leftover solve
+		}
+		for (int q=0; q<queueEnd; q++) {
+			int cell = queueCells[q];
+			int i = cell/height;
+			int j = cell%height;
+			int[][] moves = {{1,0}, {-1,0}, {0,1}, {0,-1}};
+			for (int[] move : moves) {
+				int ni = i+move[0];
+				int nj = j+move[1];
+				if (ni<0 || ni>=width || nj<0 || nj>=height || cellSteps[ni*height+nj]!=null) {
+					continue;
+				}
+				int next = ni*height+nj;
+				double[] local = cellSteps[cell];
+				expectedX[next] = expectedX[cell]+move[0]*local[2]+move[1]*local[4];
+				expectedY[next] = expectedY[cell]+move[0]*local[3]+move[1]*local[5];
+				cellSteps[next] = local;
+				queueCells[queueEnd++] = next;
+			}
+		}
+		int[][][] expected = new int[width][height][2];
+		int[] cellX = new int[cellCount];
+		int[] cellY = new int[cellCount];
+		for (int cell=0; cell<cellCount; cell++) {
+			cellX[cell] = (int)Math.round(expectedX[cell]);
+			cellY[cell] = (int)Math.round(expectedY[cell]);
+			expected[cell/height][cell%height][0] = cellX[cell];
+			expected[cell/height][cell%height][1] = cellY[cell];
+		}
+		TMA.TMAexpected = expected;
+		TMA.rotation = Math.toDegrees(angle);
+
+		// Leftover cores go to the free cells around them. Cores competing for the same cells are grouped
+		// (union-find) and each group solved with Munkres, so the solves stay small
+		int failFlag = 0;
+		ArrayList<Integer> leftoverCores = new ArrayList<Integer>();
+		for (int p=0; p<cores; p++) {
+			if (coreCell[p]==-1) {
+				leftoverCores.add(p);
+			}
+		}
+		if (!leftoverCores.isEmpty()) {
+			PointIndex cellIndex = new PointIndex(cellX, cellY);
+			int[][] leftoverCells = new int[leftoverCores.size()][];
+			int[] group = new int[leftoverCores.size()];
+			int[] cellGroup = new int[cellCount];
+			Arrays.fill(cellGroup, -1);
+			for (int l=0; l<leftoverCores.size(); l++) {
+				int p = leftoverCores.get(l);
+				group[l] = l;
+				ArrayList<Integer> free = new ArrayList<Integer>();
+				for (int cell : cellIndex.nearest(coreX[p], coreY[p], LEFTOVER_CANDIDATES)) {
+					if (cellCore[cell]==-1) {
+						free.add(cell);
+						if (cellGroup[cell]==-1) {
+							cellGroup[cell] = l;
+						}
+						else {
+							union(group, l, cellGroup[cell]);
+						}
+					}
+				}
+				leftoverCells[l] = new int[free.size()];
+				for (int c=0; c<free.size(); c++) {
+					leftoverCells[l][c] = free.get(c);
+				}
+			}
+			HashMap<Integer,ArrayList<Integer>> groups = new HashMap<Integer,ArrayList<Integer>>();
+			ArrayList<Integer> roots = new ArrayList<Integer>();	// In core order, so the solves run in the same order every time
+			for (int l=0; l<leftoverCores.size(); l++) {
+				int root = find(group, l);
+				if (!groups.containsKey(root)) {
+					groups.put(root, new ArrayList<Integer>());
+					roots.add(root);
+				}
+				groups.get(root).add(l);
+			}
+			if (TMA.verbose) {System.out.println(leftoverCores.size()+" leftover cores in "+groups.size()+" groups matched with Munkres");}
+			for (int root : roots) {
+				ArrayList<Integer> members = groups.get(root);
+				ArrayList<Integer> freeCells = new ArrayList<Integer>();
+				boolean[] added = new boolean[cellCount];
+				for (int l : members) {
+					for (int cell : leftoverCells[l]) {
+						if (!added[cell]) {
+							added[cell] = true;
+							freeCells.add(cell);
+						}
+					}
+				}
+				if (freeCells.isEmpty()) {
+					continue;	// Tried against the whole grid below
+				}
+				if (freeCells.size()>LEFTOVER_GROUP) {
+					return degrade(TMA, members.size()+" leftover cores compete for "+freeCells.size()+" cells (more than "+LEFTOVER_GROUP+" for one solve)");
+				}
+				int[][] cellPoints = new int[2][freeCells.size()];
+				int[][] corePoints = new int[2][members.size()];
+				for (int c=0; c<freeCells.size(); c++) {
+					cellPoints[0][c] = cellX[freeCells.get(c)];
+					cellPoints[1][c] = cellY[freeCells.get(c)];
+				}
+				for (int m=0; m<members.size(); m++) {
+					corePoints[0][m] = coreX[leftoverCores.get(members.get(m))];
+					corePoints[1][m] = coreY[leftoverCores.get(members.get(m))];
+				}
+				workspace.setDeadline(deadline);
+				workspace.setDistances(cellPoints, corePoints);
+				workspace.addFakePoints();
+				workspace.calcMatrices();
+				if (workspace.timedOut) {
+					return degrade(TMA, "Lattice leftover solves exceeded the "+TMA.timeBudgetMillis+"ms time budget");
+				}
+				int[] matches = workspace.getAssignments();	// [cell] = core
+				for (int c=0; c<freeCells.size(); c++) {
+					if (matches[c]!=Integer.MAX_VALUE && matches[c]<members.size()) {
+						int p = leftoverCores.get(members.get(matches[c]));
+						coreCell[p] = freeCells.get(c);
+						cellCore[freeCells.get(c)] = p;
+					}
+				}
+			}
+			// Cores still without a cell (more cores than free cells close by): the closest free cell anywhere
+			failFlag = closestFree(leftoverCores, coreCell, cellCore, coreX, coreY, cellX, cellY);
+		}
+
+		// Store the result
+		int[][][] matrix = new int[width][height][2];
+		for (int p=0; p<cores; p++) {
+			if (coreCell[p]!=-1) {
+				matrix[coreCell[p]/height][coreCell[p]%height][0] = coreX[p];
+				matrix[coreCell[p]/height][coreCell[p]%height][1] = coreY[p];
+			}
+		}
+		TMA.TMAactual = matrix;
+		return failFlag;
+	}
+
+	// Steps from a walked core to its unwalked neighbours which land close to a lattice position
+	private static void addCandidates(int from, int[][] neighbours, int[] coreX, int[] coreY, boolean[] walked, double[][] fits, WalkCandidates candidates, PriorityQueue<Long> queue) {
+		for (int to : neighbours[from]) {
+			if (!walked[to]) {
+				double[] step = stepTo(fits[from], coreX[to], coreY[to]);
+				if (step!=null) {
+					queue.add(candidates.add(from, to, step));
+				}
+			}
+		}
+	}
+
+	// The number of row and column steps from a fitted core to a position, and how well it fits (lower is better,
+	// and any single step comes before a longer one or a diagonal, which are only needed over missing cores):
+	// {di, dj, score}. Null if it isn't within
+	// STEP_TOLERANCE of a lattice position or is more than MAX_STEP away
+	private static double[] stepTo(double[] fit, int x, int y) {
+		double determinant = fit[2]*fit[5]-fit[3]*fit[4];
+		if (determinant==0) {
+			return null;
+		}
+		double dx = x-fit[0];
+		double dy = y-fit[1];
+		int di = (int)Math.round((dx*fit[5]-dy*fit[4])/determinant);
+		int dj = (int)Math.round((fit[2]*dy-fit[3]*dx)/determinant);
+		if ((di==0 && dj==0) || Math.abs(di)>MAX_STEP || Math.abs(dj)>MAX_STEP) {
+			return null;
+		}
+		double stepLength = Math.min(Math.hypot(fit[2], fit[3]), Math.hypot(fit[4], fit[5]));
+		double error = Math.hypot(dx-di*fit[2]-dj*fit[4], dy-di*fit[3]-dj*fit[5])/stepLength;
+		if (error>STEP_TOLERANCE) {
+			return null;
+		}
+		return new double[] {di, dj, error+STEP_TOLERANCE*(Math.abs(di)+Math.abs(dj)-1)};
+	}
+
+	// Whether the walked neighbours of a core (other than the one it is being walked from) agree with placing it
+	// in a cell, at least as many put it there as put it somewhere else
+	private static boolean agreed(int core, int from, int cellColumn, int cellRow, int[][] neighbours, int[] coreX, int[] coreY, int[] column, int[] row, boolean[] walked, double[][] fits) {
+		int agree = 1;		// The core it is walked from
+		int disagree = 0;
+		for (int n : neighbours[core]) {
+			if (n==from || n==core || !walked[n]) {
+				continue;
+			}
+			double[] step = stepTo(fits[n], coreX[core], coreY[core]);
+			if (step!=null) {
+				if (column[n]+(int)step[0]==cellColumn && row[n]+(int)step[1]==cellRow) {
+					agree++;
+				}
+				else {
+					disagree++;
+				}
+			}
+		}
+		return agree>=disagree;
+	}
+
+	// Least squares fit of x and y against column and row over the walked cores around p (including p itself):
+	// {x, y} of p's cell and the local {rowX, rowY, colX, colY} steps. The steps are pulled towards the global
+	// lattice steps, and taken from them if the walked cores don't yet span both directions or the fit strays more
+	// than MAX_WARP from them (a misplaced neighbour). Pulling towards a neighbour's fit instead would let the
+	// errors add up along the walk
+	private static double[] localFit(int p, int[][] neighbours, int[] coreX, int[] coreY, int[] column, int[] row, boolean[] walked, double[] lattice) {
+		int count = 0;
+		double meanC = 0;
+		double meanR = 0;
+		double meanX = 0;
+		double meanY = 0;
+		for (int n : neighbours[p]) {
+			if (walked[n]) {
+				count++;
+				meanC += column[n]-column[p];
+				meanR += row[n]-row[p];
+				meanX += coreX[n];
+				meanY += coreY[n];
+			}
+		}
+		meanC /= count;
+		meanR /= count;
+		meanX /= count;
+		meanY /= count;
+		double cc = 0;
+		double cr = 0;
+		double rr = 0;
+		double xc = 0;
+		double xr = 0;
+		double yc = 0;
+		double yr = 0;
+		for (int n : neighbours[p]) {
+			if (walked[n]) {
+				double dc = column[n]-column[p]-meanC;
+				double dr = row[n]-row[p]-meanR;
+				double dx = coreX[n]-meanX;
+				double dy = coreY[n]-meanY;
+				cc += dc*dc;
+				cr += dc*dr;
+				rr += dr*dr;
+				xc += dx*dc;
+				xr += dx*dr;
+				yc += dy*dc;
+				yr += dy*dr;
+			}
+		}
+		double[] steps = {lattice[2], lattice[3], lattice[4], lattice[5]};
+		// Ridge regression, so a fit to a few jittered cores can't move the steps far
+		cc += FIT_WEIGHT;
+		rr += FIT_WEIGHT;
+		xc += FIT_WEIGHT*steps[0];
+		yc += FIT_WEIGHT*steps[1];
+		xr += FIT_WEIGHT*steps[2];
+		yr += FIT_WEIGHT*steps[3];
+		double determinant = cc*rr-cr*cr;
+		if (determinant>0) {
+			double[] fitted = {(xc*rr-xr*cr)/determinant, (yc*rr-yr*cr)/determinant, (xr*cc-xc*cr)/determinant, (yr*cc-yc*cr)/determinant};
+			double limit = MAX_WARP*Math.min(Math.hypot(steps[0], steps[1]), Math.hypot(steps[2], steps[3]));
+			if (Math.hypot(fitted[0]-steps[0], fitted[1]-steps[1])<=limit && Math.hypot(fitted[2]-steps[2], fitted[3]-steps[3])<=limit) {
+				steps = fitted;
+			}
+		}
+		// Position of p's cell on the fitted lattice (p's own position when it has no walked neighbours)
+		double x = meanX-meanC*steps[0]-meanR*steps[2];
+		double y = meanY-meanC*steps[1]-meanR*steps[3];
+		return new double[] {x, y, steps[0], steps[1], steps[2], steps[3]};
+	}
+
+	// Assign each core without a cell to the closest free cell, in core order. Returns the number left without one
+	// (only when there are more cores than cells)
+	private static int closestFree(ArrayList<Integer> leftoverCores, int[] coreCell, int[] cellCore, int[] coreX, int[] coreY, int[] cellX, int[] cellY) {
+		ArrayList<Integer> freeCells = new ArrayList<Integer>();
+		for (int cell=0; cell<cellCore.length; cell++) {
+			if (cellCore[cell]==-1) {
+				freeCells.add(cell);
+			}
+		}
+		int unplaced = 0;
+		for (int p : leftoverCores) {
+			if (coreCell[p]==-1) {
+				unplaced++;
+			}
+		}
+		if (unplaced==0 || freeCells.isEmpty()) {
+			return unplaced;
+		}
+		int[] freeX = new int[freeCells.size()];
+		int[] freeY = new int[freeCells.size()];
+		for (int f=0; f<freeCells.size(); f++) {
+			freeX[f] = cellX[freeCells.get(f)];
+			freeY[f] = cellY[freeCells.get(f)];
+		}
+		PointIndex freeIndex = new PointIndex(freeX, freeY);
+		boolean[] taken = new boolean[freeCells.size()];
+		int available = freeCells.size();
+		for (int p : leftoverCores) {
+			if (coreCell[p]!=-1 || available==0) {
+				continue;
+			}
+			// Look further out until a free cell turns up
+			for (int k=4; ; k*=4) {
+				int chosen = -1;
+				for (int f : freeIndex.nearest(coreX[p], coreY[p], Math.min(k, freeCells.size()))) {
+					if (!taken[f]) {
+						chosen = f;
+						break;
+					}
+				}
+				if (chosen!=-1) {
+					taken[chosen] = true;
+					available--;
+					coreCell[p] = freeCells.get(chosen);
+					cellCore[freeCells.get(chosen)] = p;
+					unplaced--;
+					break;
+				}
+				if (k>=freeCells.size()) {
+					break;
+				}
+			}
+		}
+		return unplaced;
+	}
+
+	// Out of time or too many cores competing for the same cells: greedy matching to the walked lattice instead
+	private static int degrade(PointMatrix TMA, String reason) {
+		TMA.degraded = true;
+		TMA.degradedReason = reason+", greedy matching to the walked lattice used instead";
+		TMA.matchedBy = "greedy";
+		return TMA.TMApositionsGreedy();
+	}
+
+	// Median offset to the neighbours one step away within 30 degrees of a direction (either way), null if none.
+	// The closest neighbour each way gives the length of a step, then every neighbour up to 1.5 steps away is
+	// counted (the closest alone would be biased short by the jitter, as it is the nearer of two)
+	private static double[] medianStep(int[][] neighbours, int[] coreX, int[] coreY, double angle) {
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		double[] closest = new double[neighbours.length];
+		int count = 0;
+		for (int p=0; p<neighbours.length; p++) {
+			double best = Double.MAX_VALUE;
+			for (int n : neighbours[p]) {
+				double dx = coreX[n]-coreX[p];
+				double dy = coreY[n]-coreY[p];
+				double length = Math.hypot(dx, dy);
+				if (length>0 && Math.abs(dx*cos+dy*sin)>=length*Math.cos(Math.toRadians(30))) {
+					best = Math.min(best, length);
+				}
+			}
+			if (best!=Double.MAX_VALUE) {
+				closest[count++] = best;
+			}
+		}
+		if (count==0) {
+			return null;
+		}
+		Arrays.sort(closest, 0, count);
+		double limit = 1.5*closest[count/2];
+		double[] stepX = new double[neighbours.length*NEIGHBOURS];
+		double[] stepY = new double[neighbours.length*NEIGHBOURS];
+		count = 0;
+		for (int p=0; p<neighbours.length; p++) {
+			for (int n : neighbours[p]) {
+				double dx = coreX[n]-coreX[p];
+				double dy = coreY[n]-coreY[p];
+				double length = Math.hypot(dx, dy);
+				double along = dx*cos+dy*sin;
+				if (length>0 && length<limit && Math.abs(along)>=length*Math.cos(Math.toRadians(30)) && count<stepX.length) {
+					stepX[count] = (along>0) ? dx : -dx;
+					stepY[count] = (along>0) ? dy : -dy;
+					count++;
+				}
+			}
+		}
+		Arrays.sort(stepX, 0, count);
+		Arrays.sort(stepY, 0, count);
+		return new double[] {stepX[count/2], stepY[count/2]};
+	}
+
+	// Refine the global steps (in place) with a least squares fit to every neighbour offset which lands close to a
+	// lattice position, so longer and diagonal offsets count as well. Repeated, as the offsets which fit change with
+	// the steps. The medians alone are poor on small arrays, from a few jittered cores
+	private static void refineSteps(int[][] neighbours, int[] coreX, int[] coreY, double[] rowStep, double[] colStep) {
+		for (int iteration=0; iteration<REFINE_ITERATIONS; iteration++) {
+			double[] fit = {0, 0, rowStep[0], rowStep[1], colStep[0], colStep[1]};
+			double ii = 0;
+			double ij = 0;
+			double jj = 0;
+			double xi = 0;
+			double xj = 0;
+			double yi = 0;
+			double yj = 0;
+			for (int p=0; p<neighbours.length; p++) {
+				fit[0] = coreX[p];
+				fit[1] = coreY[p];
+				for (int n : neighbours[p]) {
+					double[] step = stepTo(fit, coreX[n], coreY[n]);
+					if (step!=null) {
+						ii += step[0]*step[0];
+						ij += step[0]*step[1];
+						jj += step[1]*step[1];
+						xi += (coreX[n]-coreX[p])*step[0];
+						xj += (coreX[n]-coreX[p])*step[1];
+						yi += (coreY[n]-coreY[p])*step[0];
+						yj += (coreY[n]-coreY[p])*step[1];
+					}
+				}
+			}
+			double determinant = ii*jj-ij*ij;
+			if (determinant<=0) {
+				return;		// The offsets don't span both directions
+			}
+			rowStep[0] = (xi*jj-xj*ij)/determinant;
+			rowStep[1] = (yi*jj-yj*ij)/determinant;
+			colStep[0] = (xj*ii-xi*ij)/determinant;
+			colStep[1] = (yj*ii-yi*ij)/determinant;
+		}
+	}
+
+	private static int closestOther(int[] neighbours, int p, int[] coreX, int[] coreY) {
+		for (int n : neighbours) {
+			if (n!=p && (coreX[n]!=coreX[p] || coreY[n]!=coreY[p])) {
+				return n;	// Closest first
+			}
+		}
+		return -1;
+	}
+
+	// Offset of the window of the given size holding the most walked cores (the lowest offset if they all fit)
+	private static int bestWindow(int[] position, boolean[] walked, int size) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (int p=0; p<position.length; p++) {
+			if (walked[p]) {
+				min = Math.min(min, position[p]);
+				max = Math.max(max, position[p]);
+			}
+		}
+		if (max-min+1<=size) {
+			return min;
+		}
+		int[] counts = new int[max-min+2];		// Cumulative count of cores up to each position
+		for (int p=0; p<position.length; p++) {
+			if (walked[p]) {
+				counts[position[p]-min+1]++;
+			}
+		}
+		for (int c=1; c<counts.length; c++) {
+			counts[c] += counts[c-1];
+		}
+		int best = min;
+		int bestCount = -1;
+		for (int start=min; start+size-1<=max; start++) {
+			int inside = counts[start-min+size]-counts[start-min];
+			if (inside>bestCount) {
+				bestCount = inside;
+				best = start;
+			}
+		}
+		return best;
+	}
+
+	private static long key(int column, int row) {
+		return ((long)column<<32)^(row&0xffffffffL);
+	}
+
+	private static int find(int[] group, int l) {
+		while (group[l]!=l) {
+			group[l] = group[group[l]];
+			l = group[l];
+		}
+		return l;
+	}
+
+	private static void union(int[] group, int a, int b) {
+		group[find(group, a)] = find(group, b);
+	}
+
+	// Growable arrays of the steps waiting in the queue
+	private static class WalkCandidates {
+		int[] from = new int[64];
+		int[] to = new int[64];
+		int[] di = new int[64];
+		int[] dj = new int[64];
+		int count = 0;
+
+		// Store a step (from stepTo), returns its queue entry: (score bits << 32 | candidate number) so the queue
+		// orders the steps by score
+		long add(int fromCore, int toCore, double[] step) {
+			if (count==from.length) {
+				from = Arrays.copyOf(from, count*2);
+				to = Arrays.copyOf(to, count*2);
+				di = Arrays.copyOf(di, count*2);
+				dj = Arrays.copyOf(dj, count*2);
+			}
+			from[count] = fromCore;
+			to[count] = toCore;
+			di[count] = (int)step[0];
+			dj[count] = (int)step[1];
+			return ((long)Float.floatToIntBits((float)step[2])<<32) | count++;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost model for the matching engines and memory admission control.
+ * Used by the "auto" algorithm to pick an engine for each TMA, and by every engine so that parallel runs
+ * (batch, service, TMAMatcher.matchAll) only start a TMA once its matrices fit in the heap budget.
+ *
+ * How to use:
+ * Set the budgets (optional, default to half the maximum heap and one minute per TMA, also an option in the
+ * interface, TMABatch, TMAPipeline and TMAService):
+ * - MatchPlanner.setHeapBudget(bytes)
+ * - MatchPlanner.timeBudgetMillis = 30000	(default per TMA time budget, see PointMatrix.timeBudgetMillis)
+ * Choose an engine from the core count, cell count, the number of cells more than one core is closest to and the time budget:
+ * - MatchPlanner.choose(cores, cells, collisions, timeBudgetMillis)
+ * Reserve memory before matching and return it afterwards:
+ * - int permits = MatchPlanner.acquire(MatchPlanner.estimateBytes(engine, cores, cells))
+ * - MatchPlanner.release(permits)
+ * Or, with a HungarianMatch object which is kept between TMAs, so the matrices it keeps stay counted:
+ * - MatchPlanner.claim(workspace)	(around everything done with the object, see PointMatrix.match)
+ * - int permits = MatchPlanner.acquire(bytes, workspace)
+ * - MatchPlanner.release(permits, workspace)
+ * - MatchPlanner.unclaim(workspace)
+ * - MatchPlanner.discard(workspace)	(when the object is no longer needed)
+ * Requests are admitted in order (fair semaphore), so a large TMA isn't overtaken indefinitely by small ones.
+ */
+
+class MatchPlanner {
+	// Rough figures measured on a desktop PC, only need to be the right order of magnitude
+	static final double HUNGARIAN_NS = 4.0;		// Per n^3 (n = larger of cores and cells)
+	static final double EXACT_NS = 10.0;		// Per core/cell pair
+	static final double GREEDY_NS = 400.0;		// Per core (index search, sort and assignment of its candidate pairs)
+	static final double LATTICE_NS = 40000.0;	// Per core (neighbour search, walk and refits, leftover solves are small)
+
+	static final int GRID_COPIES = 4;		// Grids of int[width][height][2] held at once (expected, sheared, assigned, result)
+
+	static final long RECLAIM_MILLIS = 100;		// How often a thread waiting for memory checks for idle kept matrices
+
+	static long heapBudget;
+	static long timeBudgetMillis = 60000;
+	private static Semaphore memory;		// Permits are kilobytes of the heap budget
+	private static int memoryPermits;
+	private static final ArrayList<HungarianMatch> idle = new ArrayList<HungarianMatch>();	// Kept objects not in use (see claim)
+
+	static {
+		setHeapBudget(Runtime.getRuntime().maxMemory()/2);
+	}
+
+	// Only change the budget while nothing is being matched (kept matrices still count against the old budget)
+	public static synchronized void setHeapBudget(long bytes) {
+		heapBudget = bytes;
+		memoryPermits = (int)Math.min(Integer.MAX_VALUE, Math.max(1, bytes/1024));
+		memory = new Semaphore(memoryPermits, true);
+	}
+
+	// Memory needed by an engine, in bytes
+	public static long estimateBytes(String engine, int cores, int cells) {
+		long n = Math.max(cores, cells);
+		if (engine.equals("hungarian")) {
+			// setDistances (cells x cores), then padded, scoring, zero and intersection matrices (n x n each)
+			return 4L*cells*cores + 4*(4L*n*n + 16*n);
+		}
+		if (engine.equals("greedy")) {
+			// Candidate pairs (two ints and a long each) plus the index and assignment arrays
+			return 16L*cores*PointMatrix.GREEDY_CANDIDATES + 24L*(cores+cells);
+		}
+		if (engine.equals("lattice")) {
+			// Neighbour lists, fits, walk state and queued steps (boxed) per core, expected positions per cell, then
+			// the larger of one leftover solve and the greedy matching it falls back to
+			long walk = (40L*LatticeWalk.NEIGHBOURS+200)*cores + 64L*cells;
+			return walk + Math.max(estimateBytes("hungarian", LatticeWalk.LEFTOVER_GROUP, LatticeWalk.LEFTOVER_GROUP), estimateBytes("greedy", cores, cells));
+		}
+		// Exact matching only needs the output grid
+		return 12L*cells + 8L*cores;
+	}
+
+	// Memory for the grids of a TMA, needed whichever engine is used (an int[2] and its reference per cell), in bytes.
+	// Takes a long so an absurd width x height can't overflow before it is checked
+	public static long gridBytes(long cells) {
+		return GRID_COPIES*32L*cells;
+	}
+
+	// Time needed by an engine, in milliseconds
+	public static double estimateMillis(String engine, int cores, int cells) {
+		double n = Math.max(cores, cells);
+		if (engine.equals("hungarian")) {
+			return HUNGARIAN_NS*n*n*n/1e6;
+		}
+		if (engine.equals("greedy")) {
+			return GREEDY_NS*cores/1e6;
+		}
+		if (engine.equals("lattice")) {
+			return LATTICE_NS*cores/1e6;
+		}
+		return EXACT_NS*cores*cells/1e6;
+	}
+
+	// Choose an engine for the "auto" algorithm:
+	// - No two cores closest to the same cell: greedy gives the same result as exact matching (but faster and never overwrites)
+	// - Otherwise Munkres for the optimal assignment, if it fits in the memory and time budgets
+	// - Otherwise greedy
+	public static String choose(int cores, int cells, int collisions, long timeBudgetMillis) {
+		if (collisions==0) {
+			return "greedy";
+		}
+		if (estimateBytes("hungarian", cores, cells)<=heapBudget && (timeBudgetMillis<=0 || estimateMillis("hungarian", cores, cells)<=timeBudgetMillis)) {
+			return "hungarian";
+		}
+		return "greedy";
+	}
+
+	private static int permitsFor(long bytes) {
+		return (int)Math.max(1, Math.min(memoryPermits, bytes/1024));
+	}
+
+	// Wait until the memory is available within the budget, returns the permits to release afterwards.
+	// A request larger than the whole budget waits for everything else to finish and then runs alone.
+	public static int acquire(long bytes) {
+		int permits = permitsFor(bytes);
+		Semaphore current = memory;
+		waitFor(current, permits);
+		return permits;
+	}
+
+	public static void release(int permits) {
+		memory.release(permits);
+	}
+
+	// As above for a run using a HungarianMatch object which is kept between TMAs. The permits it already holds for
+	// the matrices it kept count towards the request. If the rest isn't free, this object's and the idle objects'
+	// matrices are dropped (and their permits returned) before waiting, so a thread never waits on memory which
+	// nothing is using
+	public static int acquire(long bytes, HungarianMatch workspace) {
+		int permits = permitsFor(bytes);
+		Semaphore current;
+		int held;
+		synchronized (MatchPlanner.class) {
+			current = memory;
+			if (workspace.heldFrom!=current) {
+				dropKept(workspace);	// Kept under an earlier budget
+			}
+			held = workspace.heldPermits;
+			workspace.heldPermits = 0;
+			workspace.heldFrom = null;
+		}
+		if (held>=permits) {
+			return held;
+		}
+		if (tryAcquire(current, permits-held)) {
+			return permits;
+		}
+		current.release(held);
+		workspace.releaseBuffers();
+		waitFor(current, permits);
+		return permits;
+	}
+
+	// Return the permits of a run, keeping those needed for the matrices the HungarianMatch object keeps
+	public static void release(int permits, HungarianMatch workspace) {
+		Semaphore current;
+		int kept;
+		synchronized (MatchPlanner.class) {
+			current = memory;
+			long retained = workspace.retainedBytes();
+			kept = (retained==0) ? 0 : Math.min(permits, permitsFor(retained));
+			workspace.heldPermits = kept;
+			workspace.heldFrom = current;
+		}
+		current.release(permits-kept);
+	}
+
+	// Mark a kept HungarianMatch object as in use (claim) or idle (unclaim). Only idle objects give up their
+	// matrices to a waiting thread
+	public static synchronized void claim(HungarianMatch workspace) {
+		idle.remove(workspace);
+	}
+
+	public static synchronized void unclaim(HungarianMatch workspace) {
+		if (workspace.heldFrom!=null && workspace.heldFrom.hasQueuedThreads()) {
+			dropKept(workspace);	// Another thread is already waiting for memory
+		}
+		else if (workspace.heldPermits>0 && !idle.contains(workspace)) {
+			idle.add(workspace);
+		}
+	}
+
+	// Return the permits held by a HungarianMatch object which won't be used again, and drop its matrices
+	public static synchronized void discard(HungarianMatch workspace) {
+		idle.remove(workspace);
+		dropKept(workspace);
+	}
+
+	private static synchronized void reclaimIdle() {
+		for (HungarianMatch workspace : idle) {
+			dropKept(workspace);
+		}
+		idle.clear();
+	}
+
+	private static void dropKept(HungarianMatch workspace) {
+		if (workspace.heldFrom!=null) {
+			workspace.heldFrom.release(workspace.heldPermits);
+		}
+		workspace.heldPermits = 0;
+		workspace.heldFrom = null;
+		workspace.releaseBuffers();
+	}
+
+	// Take the permits only if they are free now (respects the queue order, unlike Semaphore.tryAcquire())
+	private static boolean tryAcquire(Semaphore current, int permits) {
+		try {
+			return current.tryAcquire(permits, 0, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Wait for the permits, taking back the memory of idle objects while waiting (an object can become idle
+	// after this thread started waiting, so this is repeated rather than done once)
+	private static void waitFor(Semaphore current, int permits) {
+		while (true) {
+			if (tryAcquire(current, permits)) {
+				return;
+			}
+			reclaimIdle();
+			try {
+				if (current.tryAcquire(permits, RECLAIM_MILLIS, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				current.acquireUninterruptibly(permits);
+				return;
+			}
+		}
+	}
+}
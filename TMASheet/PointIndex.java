@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Spatial index to quickly find the points closest to a location.
+ * Points are bucketed into a uniform grid of cells (roughly two points per cell) so a search only needs
+ * to look at the cells around the location rather than every point.
+ *
+ * How to use:
+ * Create the index from two arrays of X and Y co-ordinates (the index refers to points by their position in these arrays):
+ * - PointIndex index = new PointIndex(xValues, yValues)
+ * Find the k closest points to a location (closest first):
+ * - index.nearest(x, y, k)
+ * Find all points within a radius of a location:
+ * - index.within(x, y, radius)
+ * Find all points inside a rectangle (e.g. the visible part of a view):
+ * - index.inside(minX, minY, maxX, maxY)
+ */
+
+class PointIndex {
+	int[] xValues;
+	int[] yValues;
+	int minX;
+	int minY;
+	int cellSize;
+	int cols;
+	int rows;
+	int[] cellStart;	// Points in cell c are cellPoints[cellStart[c]] to cellPoints[cellStart[c+1]-1]
+	int[] cellPoints;
+
+	public PointIndex(int[] xValues, int[] yValues) {
+		this(xValues, yValues, 0);
+	}
+	public PointIndex(int[] xValues, int[] yValues, int cellSize) {
+		// A cellSize of 0 picks a size giving roughly two points per cell
+		this.xValues = xValues;
+		this.yValues = yValues;
+		int count = xValues.length;
+		minX = Integer.MAX_VALUE;
+		minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i=0; i<count; i++) {
+			if (xValues[i]<minX) {minX=xValues[i];}
+			if (yValues[i]<minY) {minY=yValues[i];}
+			if (xValues[i]>maxX) {maxX=xValues[i];}
+			if (yValues[i]>maxY) {maxY=yValues[i];}
+		}
+		if (count==0) {
+			minX = 0; minY = 0; maxX = 0; maxY = 0;
+		}
+		if (cellSize<=0) {
+			double area = Math.max(1.0, (double)(maxX-minX+1)*(maxY-minY+1));
+			cellSize = (int)Math.ceil(Math.sqrt(area*2/Math.max(1,count)));
+		}
+		this.cellSize = Math.max(1, cellSize);
+		cols = (maxX-minX)/this.cellSize+1;
+		rows = (maxY-minY)/this.cellSize+1;
+		// Counting sort of the points into their cells
+		cellStart = new int[cols*rows+1];
+		for (int i=0; i<count; i++) {
+			cellStart[cellOf(i)+1]++;
+		}
+		for (int c=0; c<cols*rows; c++) {
+			cellStart[c+1] += cellStart[c];
+		}
+		int[] fill = Arrays.copyOf(cellStart, cols*rows);
+		cellPoints = new int[count];
+		for (int i=0; i<count; i++) {
+			cellPoints[fill[cellOf(i)]++] = i;
+		}
+	}
+
+	private int cellOf(int point) {
+		return ((yValues[point]-minY)/cellSize)*cols+((xValues[point]-minX)/cellSize);
+	}
+	private int cellCoord(int value, int min) {
+		// Cell column/row for a location (can be outside the grid, floor division so negatives round down)
+		return (int)Math.floor((double)(value-min)/cellSize);
+	}
+
+	public int size() {
+		return xValues.length;
+	}
+
+	public long distanceSquared(int point, int x, int y) {
+		long dx = xValues[point]-x;
+		long dy = yValues[point]-y;
+		return dx*dx+dy*dy;
+	}
+
+	// Closest point to a location (-1 if the index is empty)
+	public int nearest(int x, int y) {
+		int[] closest = nearest(x, y, 1);
+		if (closest.length==0) {
+			return -1;
+		}
+		return closest[0];
+	}
+
+	// The k closest points to a location, closest first (fewer if the index holds less than k points)
+	public int[] nearest(int x, int y, int k) {
+		k = Math.min(k, size());
+		int[] best = new int[k];
+		long[] bestDistance = new long[k];
+		int found = 0;
+		if (k==0) {
+			return best;
+		}
+		int cx = cellCoord(x, minX);
+		int cy = cellCoord(y, minY);
+		// Furthest ring of cells which could still contain points
+		int maxRing = Math.max(Math.max(Math.abs(cx), Math.abs(cols-1-cx)), Math.max(Math.abs(cy), Math.abs(rows-1-cy)));
+		for (int ring=0; ring<=maxRing; ring++) {
+			for (int gy=cy-ring; gy<=cy+ring; gy++) {
+				if (gy<0 || gy>=rows) {continue;}
+				int step = (gy==cy-ring || gy==cy+ring) ? 1 : 2*ring;	// Only the edge of the ring (rows in between only have the two end cells)
+				for (int gx=cx-ring; gx<=cx+ring; gx+=Math.max(1,step)) {
+					if (gx<0 || gx>=cols) {continue;}
+					int cell = gy*cols+gx;
+					for (int p=cellStart[cell]; p<cellStart[cell+1]; p++) {
+						int point = cellPoints[p];
+						long distance = distanceSquared(point, x, y);
+						if (found<k || distance<bestDistance[found-1]) {
+							// Insert into the sorted list of closest points
+							int pos = (found<k) ? found++ : found-1;
+							while (pos>0 && bestDistance[pos-1]>distance) {
+								best[pos] = best[pos-1];
+								bestDistance[pos] = bestDistance[pos-1];
+								pos--;
+							}
+							best[pos] = point;
+							bestDistance[pos] = distance;
+						}
+					}
+				}
+			}
+			// Any point in the next ring is at least ring*cellSize away
+			long limit = (long)ring*cellSize;
+			if (found==k && bestDistance[k-1]<=limit*limit) {
+				break;
+			}
+		}
+		return best;
+	}
+
+	// All points within the radius of a location (unordered)
+	public int[] within(int x, int y, double radius) {
+		ArrayList<Integer> points = new ArrayList<Integer>();
+		double radiusSquared = radius*radius;
+		int x1 = Math.max(0, cellCoord((int)Math.floor(x-radius), minX));
+		int x2 = Math.min(cols-1, cellCoord((int)Math.ceil(x+radius), minX));
+		int y1 = Math.max(0, cellCoord((int)Math.floor(y-radius), minY));
+		int y2 = Math.min(rows-1, cellCoord((int)Math.ceil(y+radius), minY));
+		for (int gy=y1; gy<=y2; gy++) {
+			for (int gx=x1; gx<=x2; gx++) {
+				int cell = gy*cols+gx;
+				for (int p=cellStart[cell]; p<cellStart[cell+1]; p++) {
+					if (distanceSquared(cellPoints[p], x, y)<=radiusSquared) {
+						points.add(cellPoints[p]);
+					}
+				}
+			}
+		}
+		int[] result = new int[points.size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = points.get(i);
+		}
+		return result;
+	}
+
+	// All points with minX<=x<=maxX and minY<=y<=maxY
+	public int[] inside(int minX, int minY, int maxX, int maxY) {
+		int[] points = new int[16];
+		int count = 0;
+		int x1 = Math.max(0, cellCoord(minX, this.minX));
+		int x2 = Math.min(cols-1, cellCoord(maxX, this.minX));
+		int y1 = Math.max(0, cellCoord(minY, this.minY));
+		int y2 = Math.min(rows-1, cellCoord(maxY, this.minY));
+		for (int gy=y1; gy<=y2; gy++) {
+			for (int gx=x1; gx<=x2; gx++) {
+				int cell = gy*cols+gx;
+				for (int p=cellStart[cell]; p<cellStart[cell+1]; p++) {
+					int point = cellPoints[p];
+					if (xValues[point]>=minX && xValues[point]<=maxX && yValues[point]>=minY && yValues[point]<=maxY) {
+						if (count==points.length) {
+							points = Arrays.copyOf(points, count*2);
+						}
+						points[count++] = point;
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(points, count);
+	}
+}
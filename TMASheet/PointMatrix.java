@@ -0,0 +1,1041 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Class to store the point cloud and related methods
+class PointMatrix{
+	// Edit default matrix size for object here:
+	String TMAname = "Default";
+	int TMAWidth = 10;
+	int TMAHeight = 10;
+	ArrayList<int[]> TMAinput = new ArrayList<int[]>();
+	ArrayList<String> TMAfiles = new ArrayList<String>();	// Source (file name or manifest line) of each input point
+	ArrayList<String> TMAmerged = new ArrayList<String>();	// Duplicates removed by removeDuplicates ("kept<tab>merged")
+	ArrayList<String> TMAoutliers = new ArrayList<String>();	// Points removed by removeOutliers ("source<tab>x,y<tab>nearest distance")
+	int[][][] reference = null;		// Result from an earlier serial section to register against (see SectionRegistration)
+	static final String[] ALGORITHMS = {"hungarian", "exact", "greedy", "auto", "lattice"};	// Names accepted by match()
+	static final int GREEDY_CANDIDATES = 8;		// Closest cells considered per core by the greedy matching
+	static final int OUTLIER_NEIGHBOURS = 8;	// Neighbours checked per point by removeOutliers (enough for a full ring around a core)
+	static final int OUTLIER_STEPS = 2;		// Grid steps along a row or column a neighbour can be and still count as fitting
+	static final double OUTLIER_TOLERANCE = 0.25;	// Fraction of the core spacing a neighbour can be off by and still fit the grid
+	static AtomicInteger projectionAttempts = new AtomicInteger();	// Counts of how often the projection fast path was tried/used (all TMAs)
+	static AtomicInteger projectionTaken = new AtomicInteger();
+	int[][][] TMAexpected = new int[TMAWidth][TMAHeight][2];
+	int[][][] TMAactual = new int[TMAWidth][TMAHeight][2];
+	boolean verbose = true;			// Print the rotation correction steps to the console
+	boolean projectionFastPath = true;	// Try TMApositionsProjection() before the full matching (with rotation correction, not exact)
+	double rotation = 0;			// Rotation found by the last expected grid calculation (degrees)
+	double pitch = 0;			// Core spacing and shear found by the projection fast path (0 if not used)
+	double shear = 0;
+	GeometryPrior prior = null;		// Geometry shared with the other TMAs of a batch (see GeometryPrior)
+	private boolean priorUsed = false;	// The prior was accepted at some step of this match (counted once)
+	double[] priorSample = null;		// What this TMA gave the prior to learn {rotation, pitch, shear} (null if nothing)
+	String matchedBy = "";			// Algorithm which produced TMAactual ("projection" if the fast path was used)
+	long timeBudgetMillis = MatchPlanner.timeBudgetMillis;	// Time allowed for matching before falling back to a cheaper algorithm (0 = no limit)
+	boolean degraded = false;		// Set if the time budget was exceeded and a cheaper algorithm used
+	String degradedReason = "";
+
+	// Construct the object and set/update the input values
+	public PointMatrix() {
+	}
+	public PointMatrix(String name) {
+		TMAname = name;
+	}
+	// Add data to the object
+	public void setMatrix(int Width, int Height) {
+		TMAWidth=Width;
+		TMAHeight=Height;		
+	}
+	// For a TMA matched alongside others (batch, pipeline, service or library use), whose rotation output would
+	// interleave on the console
+	public void setParallel() {
+		verbose = false;
+	}
+	public void setReference(int[][][] grid) {
+		// Use an earlier section's result as the template, the grid size is taken from it
+		int referenceCores = 0;
+		for (int[][] column : grid){
+			for (int[] cell : column){
+				if (cell[0]!=0 || cell[1]!=0){
+					referenceCores++;
+				}
+			}
+		}
+		if (referenceCores<3){
+			System.out.println("Reference for "+TMAname+" has too few cores, it will be matched from scratch");
+			return;
+		}
+		reference = grid;
+		TMAWidth = grid.length;
+		TMAHeight = grid[0].length;
+	}
+	public void addPoint(int X, int Y) {
+		addPoint(X, Y, "");
+	}
+	public void addPoint(int X, int Y, String source) {
+		TMAinput.add(new int[] {X, Y});
+		TMAfiles.add(source);
+	}
+	// Merge cores closer than radius to an earlier core (overlapping tiles or re-scans of the same core).
+	// Cores are taken in order of source name (then position), so the same core is kept whatever order they were read in.
+	// Uses a spatial hash with cells the size of the radius so only the 3x3 cells around each core are checked, O(n) expected.
+	// Returns the number of cores removed, which are listed in TMAmerged.
+	public int removeDuplicates(double radius) {
+		HashMap<Long,ArrayList<Integer>> cells = new HashMap<Long,ArrayList<Integer>>();
+		ArrayList<int[]> keptPoints = new ArrayList<int[]>();
+		ArrayList<String> keptFiles = new ArrayList<String>();
+		double radiusSquared = radius*radius;
+		int removed = 0;
+		Integer[] order = new Integer[TMAinput.size()];
+		for (int p=0; p<order.length; p++){
+			order[p] = p;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){public int compare(Integer a, Integer b){
+			int byName = TMAfiles.get(a).compareTo(TMAfiles.get(b));
+			if (byName!=0){
+				return byName;
+			}
+			if (TMAinput.get(a)[0]!=TMAinput.get(b)[0]){
+				return Integer.compare(TMAinput.get(a)[0], TMAinput.get(b)[0]);
+			}
+			return Integer.compare(TMAinput.get(a)[1], TMAinput.get(b)[1]);
+		}});
+		for (int p : order){
+			int[] curPoint = TMAinput.get(p);
+			long cx = (long)Math.floor(curPoint[0]/radius);
+			long cy = (long)Math.floor(curPoint[1]/radius);
+			int duplicateOf = -1;
+			for (long nx=cx-1; nx<=cx+1 && duplicateOf==-1; nx++){
+				for (long ny=cy-1; ny<=cy+1 && duplicateOf==-1; ny++){
+					ArrayList<Integer> cell = cells.get((nx<<32)^(ny&0xffffffffL));
+					if (cell==null){
+						continue;
+					}
+					for (int kept : cell){
+						double dx = keptPoints.get(kept)[0]-curPoint[0];
+						double dy = keptPoints.get(kept)[1]-curPoint[1];
+						if (dx*dx+dy*dy<=radiusSquared){
+							duplicateOf = kept;
+							break;
+						}
+					}
+				}
+			}
+			if (duplicateOf!=-1){
+				TMAmerged.add(keptFiles.get(duplicateOf)+"\t"+TMAfiles.get(p));
+				removed++;
+				continue;
+			}
+			long key = (cx<<32)^(cy&0xffffffffL);
+			if (!cells.containsKey(key)){
+				cells.put(key, new ArrayList<Integer>());
+			}
+			cells.get(key).add(keptPoints.size());
+			keptPoints.add(curPoint);
+			keptFiles.add(TMAfiles.get(p));
+		}
+		TMAinput = keptPoints;
+		TMAfiles = keptFiles;
+		return removed;
+	}
+	// Remove points which don't fit the grid (debris, control spots and labels picked up with the cores).
+	// The grid directions come from the nearest neighbour of each point (folded into 0-90 degrees), and the core
+	// spacing along each direction is the median distance to the nearest neighbour that way (rows and columns can be
+	// spaced differently). Each point scores how well its neighbours fit the lattice: a neighbour fits if it is within
+	// tolerance (in core spacings) of a whole number of steps along the rows and columns, up to OUTLIER_STEPS away, so
+	// diagonal neighbours and ones across a missing core count as well as the orthogonal ones (up to 1 each, more the
+	// closer it is). Points scoring 0 (isolated, or sitting between cores) are removed, and of two points closer
+	// together than the spacing allows the one with the lower score is removed. Uses a PointIndex for the nearest
+	// neighbours, O(n log n) overall.
+	// Returns the number of points removed, which are listed in TMAoutliers.
+	public int removeOutliers(double tolerance) {
+		int count = TMAinput.size();
+		if (count<5){
+			return 0;	// Too few points to tell what the spacing should be
+		}
+		int[] xValues = new int[count];
+		int[] yValues = new int[count];
+		for (int p=0; p<count; p++){
+			xValues[p] = TMAinput.get(p)[0];
+			yValues[p] = TMAinput.get(p)[1];
+		}
+		PointIndex index = new PointIndex(xValues, yValues);
+		int[][] neighbours = new int[count][];
+		double[] nearest = new double[count];
+		// Grid direction: mean of the nearest neighbour angles with the four grid directions folded together
+		double sumCos = 0;
+		double sumSin = 0;
+		for (int p=0; p<count; p++){
+			neighbours[p] = index.nearest(xValues[p], yValues[p], OUTLIER_NEIGHBOURS+1);	// Includes the point itself, closest first
+			nearest[p] = Double.MAX_VALUE;
+			for (int n : neighbours[p]){
+				if (n==p || (xValues[n]==xValues[p] && yValues[n]==yValues[p])){
+					continue;
+				}
+				nearest[p] = Math.sqrt(index.distanceSquared(n, xValues[p], yValues[p]));
+				double angle = Math.atan2(yValues[n]-yValues[p], xValues[n]-xValues[p]);
+				sumCos += Math.cos(4*angle);
+				sumSin += Math.sin(4*angle);
+				break;
+			}
+		}
+		double[] sorted = nearest.clone();
+		Arrays.sort(sorted);
+		double spacing = sorted[count/2];
+		if (spacing==Double.MAX_VALUE){
+			return 0;	// Mostly duplicates, nothing to measure against (see removeDuplicates)
+		}
+		double cos = Math.cos(Math.atan2(sumSin, sumCos)/4);
+		double sin = Math.sin(Math.atan2(sumSin, sumCos)/4);
+		// Spacing along each direction from the closest neighbour within 30 degrees of it
+		double[] closestU = new double[count];
+		double[] closestV = new double[count];
+		Arrays.fill(closestU, Double.MAX_VALUE);
+		Arrays.fill(closestV, Double.MAX_VALUE);
+		for (int p=0; p<count; p++){
+			for (int n : neighbours[p]){
+				double u = Math.abs((xValues[n]-xValues[p])*cos+(yValues[n]-yValues[p])*sin);
+				double v = Math.abs(-(xValues[n]-xValues[p])*sin+(yValues[n]-yValues[p])*cos);
+				if (u>0 && v<u*Math.tan(Math.PI/6)){
+					closestU[p] = Math.min(closestU[p], u);
+				}
+				if (v>0 && u<v*Math.tan(Math.PI/6)){
+					closestV[p] = Math.min(closestV[p], v);
+				}
+			}
+		}
+		Arrays.sort(closestU);
+		Arrays.sort(closestV);
+		double spacingU = (closestU[count/2]!=Double.MAX_VALUE) ? closestU[count/2] : spacing;
+		double spacingV = (closestV[count/2]!=Double.MAX_VALUE) ? closestV[count/2] : spacing;
+		double[] score = new double[count];
+		for (int p=0; p<count; p++){
+			for (int n : neighbours[p]){
+				// Offset in core spacings along the rows and columns, and how far it is from a whole number of steps
+				double u = ((xValues[n]-xValues[p])*cos+(yValues[n]-yValues[p])*sin)/spacingU;
+				double v = (-(xValues[n]-xValues[p])*sin+(yValues[n]-yValues[p])*cos)/spacingV;
+				long stepsU = Math.round(u);
+				long stepsV = Math.round(v);
+				if ((stepsU==0 && stepsV==0) || Math.abs(stepsU)>OUTLIER_STEPS || Math.abs(stepsV)>OUTLIER_STEPS){
+					continue;
+				}
+				double fit = Math.hypot(u-stepsU, v-stepsV)/tolerance;
+				if (fit<1){
+					score[p] += 1-fit;
+				}
+			}
+		}
+		spacing = Math.min(spacingU, spacingV);
+		boolean[] remove = new boolean[count];
+		for (int p=0; p<count; p++){
+			if (score[p]==0){
+				remove[p] = true;
+				continue;
+			}
+			for (int n : neighbours[p]){
+				double distance = Math.sqrt(index.distanceSquared(n, xValues[p], yValues[p]));
+				if (n!=p && distance<(1-tolerance)*spacing && score[n]>score[p]){
+					remove[p] = true;	// Too close to a point which fits the grid better
+					break;
+				}
+			}
+		}
+		ArrayList<int[]> keptPoints = new ArrayList<int[]>();
+		ArrayList<String> keptFiles = new ArrayList<String>();
+		ArrayList<String> removedPoints = new ArrayList<String>();
+		for (int p=0; p<count; p++){
+			if (remove[p]){
+				removedPoints.add(TMAfiles.get(p)+"\t"+xValues[p]+","+yValues[p]+"\t"+String.format("%.1f", nearest[p]));
+			}
+			else {
+				keptPoints.add(TMAinput.get(p));
+				keptFiles.add(TMAfiles.get(p));
+			}
+		}
+		if (removedPoints.size()>count/4){
+			// Too many points don't fit - more likely an irregular layout than debris, so keep everything
+			if (verbose){System.out.println("Outlier removal skipped for "+TMAname+": "+removedPoints.size()+" of "+count+" points don't fit a regular grid");}
+			return 0;
+		}
+		TMAoutliers.addAll(removedPoints);
+		TMAinput = keptPoints;
+		TMAfiles = keptFiles;
+		return removedPoints.size();
+	}
+	// Ouput data from the object
+	public void printInput() {
+		System.out.println("TMA name: "+TMAname);	// Values input into the object		
+		System.out.println("TMA size: "+TMAWidth+" by "+TMAHeight);
+		System.out.println("Input points:");
+		for (int[] point : TMAinput){
+			System.out.println(Arrays.toString(point));
+		}
+	}
+	public void printExpected() {
+		System.out.println("Expected TMA layout: ");	// Calculated 'expected' positions
+		for (int j=0; j<TMAHeight;j++){
+			for (int i=0; i<TMAWidth;i++){
+				System.out.print(" "+i+","+j+":"+TMAexpected[i][j][0]+","+TMAexpected[i][j][1]);
+			}
+			System.out.print("\n");
+		}
+	}
+	public void printActual() {
+		System.out.println("Actual TMA layout: ");	// Matched actual positions
+		for (int j=0; j<TMAHeight;j++){
+			for (int i=0; i<TMAWidth;i++){
+				System.out.print(" "+i+","+j+":"+TMAactual[i][j][0]+","+TMAactual[i][j][1]);
+			}
+			System.out.print("\n");
+		}
+	}
+	public int[][][] getActual() {
+		return TMAactual;
+	}
+	public int[][][] getExpected() {
+		return TMAexpected;
+	}
+	public double getRotation() {
+		return rotation;
+	}
+	public int getHeight() {
+		return TMAHeight;		
+	}
+	public int getWidth() {
+		return TMAWidth;
+	}
+	// Calculations on the object
+	public void expectedMatrix(boolean autoRotate) {
+		// TODO: Apply some form of rotation correction and geometric correction based on the points given.
+		// - Calculate RMSE
+		// - Apply rotation (both directions)
+		// - Check RMSE - if improved apply rotation.
+		// From the max and min X and Y values calculate the expected position of each TMA core
+		// Find the highest and lowest values:
+		ArrayList<Integer> xValues = new ArrayList<Integer>();
+		ArrayList<Integer> yValues = new ArrayList<Integer>();
+		for (int[] points : TMAinput) {
+			xValues.add(points[0]);
+			yValues.add(points[1]);
+		}
+		int minX = Collections.min(xValues);
+		int maxX = Collections.max(xValues);
+		int minY = Collections.min(yValues);
+		int maxY = Collections.max(yValues);
+		// Create a representation of the TMA and plot expected values:
+		//ArrayList<int[]> row = new ArrayList<int[]>();
+		//ArrayList<int[]> matrix = new ArrayList<int[]>();
+		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
+		int curX;
+		int curY;
+		for (int i=0; i<TMAWidth;i++){
+			// Calculate the X value
+			curX = minX+(i*((maxX-minX)/(TMAWidth-1)));
+			for (int j=0; j<TMAHeight;j++){
+				// Calculate the Y value
+				curY = minY+(j*((maxY-minY)/(TMAHeight-1)));
+				// Add X and Y to matrix
+				//System.out.println(i+","+j+"="+curX+","+curY); // Uncomment to test X/Y calculations
+				matrix[i][j][0] = curX;
+				matrix[i][j][1] = curY;
+			}
+		}
+		if (autoRotate){
+			int[][][] matrix2 = autoRotate(matrix);
+			TMAexpected = matrix2;
+		}
+		else {
+			TMAexpected = matrix;
+		}
+		if (prior!=null && prior.hasGrid() && prior.getShear()!=0){
+			// Shear from the other TMAs of the batch, only kept if the cores are closer to the sheared grid
+			int[][][] sheared = shearGrid(TMAexpected, rotation, prior.getShear());
+			if (meanResidual(sheared)<meanResidual(TMAexpected)){
+				TMAexpected = sheared;
+				priorUsed = true;
+			}
+		}
+	}
+	// Shear a grid along its rows (rotated by angle degrees) about its centre
+	private int[][][] shearGrid(int[][][] grid, double angle, double shear){
+		double centreX = (grid[0][0][0]+grid[TMAWidth-1][TMAHeight-1][0])/2.0;
+		double centreY = (grid[0][0][1]+grid[TMAWidth-1][TMAHeight-1][1])/2.0;
+		double cos = Math.cos(Math.toRadians(angle));
+		double sin = Math.sin(Math.toRadians(angle));
+		int[][][] sheared = new int[TMAWidth][TMAHeight][2];
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				double x = grid[i][j][0]-centreX;
+				double y = grid[i][j][1]-centreY;
+				double u = x*cos+y*sin;
+				double v = -x*sin+y*cos;
+				u = u+shear*v;
+				sheared[i][j][0] = (int)Math.round(u*cos-v*sin+centreX);
+				sheared[i][j][1] = (int)Math.round(u*sin+v*cos+centreY);
+			}
+		}
+		return sheared;
+	}
+	// Mean distance from each core to its closest cell of a grid
+	private double meanResidual(int[][][] grid){
+		int cellCount = TMAWidth*TMAHeight;
+		int[] gridX = new int[cellCount];
+		int[] gridY = new int[cellCount];
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				gridX[i*TMAHeight+j] = grid[i][j][0];
+				gridY[i*TMAHeight+j] = grid[i][j][1];
+			}
+		}
+		PointIndex cellIndex = new PointIndex(gridX, gridY);
+		double total = 0;
+		for (int[] curPoint : TMAinput){
+			int cell = cellIndex.nearest(curPoint[0], curPoint[1]);
+			total += Math.sqrt(cellIndex.distanceSquared(cell, curPoint[0], curPoint[1]));
+		}
+		return total/Math.max(1, TMAinput.size());
+	}
+	// Adjust matrix to correct for minor rotations:
+	private int[][][] autoRotate(int[][][] estimateMatrix){
+		// Automatically rotate the matrix to get the best fit.
+		int[][][] rotatedMatrix = estimateMatrix;
+		float degrees = 0;	// Correction amount required
+		if (prior!=null && prior.hasAngle()){
+			// Start the search from the rotation of the TMAs already processed, but check it is at least
+			// as good as no rotation (otherwise the prior doesn't fit this TMA so search from zero)
+			float startDegrees = (float)-prior.getAngle();
+			degrees = findRotation(startDegrees);
+			if (arraySize(rotate(TMAinput,degrees))[2]>arraySize(TMAinput)[2]){
+				if (verbose){System.out.println("Rotation prior rejected for "+TMAname);}
+				degrees = findRotation(0);
+			}
+			else {
+				priorUsed = true;
+			}
+		}
+		else {
+			degrees = findRotation(0);
+		}
+		rotation = -degrees;
+		if (verbose){System.out.println("TMA is rotated by: "+(-degrees)+" degrees.");}
+		if (verbose){System.out.println("Applying correction to estimated positions");}
+		// Calculate the starting estimate grid dimensions
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				// Get the smallest X and Y values
+				if (estimateMatrix[i][j][0]<minX){minX=estimateMatrix[i][j][0];}
+				if (estimateMatrix[i][j][1]<minY){minY=estimateMatrix[i][j][1];}
+				if (estimateMatrix[i][j][0]>maxX){maxX=estimateMatrix[i][j][0];}
+				if (estimateMatrix[i][j][1]>maxY){maxY=estimateMatrix[i][j][1];}
+			}
+		}
+		int sizeX = maxX-minX;
+		int sizeY = maxY-minY;
+		int originX = minX+(sizeX/2);
+		int originY = minY+(sizeY/2);
+		if (verbose){System.out.println("Estimate grid starting dimensions: "+sizeX+":"+sizeY+" with centre at "+originX+":"+originY);}
+		// Make the correction
+		// Rotate:
+		double angle = Math.toRadians(-degrees);
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				double newX = estimateMatrix[i][j][0]-originX;							// Move point to the origin
+				double newY = estimateMatrix[i][j][1]-originY;
+				double newXb = (newX*Math.cos(angle))-(newY*Math.sin(angle));		// Rotate point 
+				double newYb = (newX)*Math.sin(angle)+(newY)*Math.cos(angle);
+				newX = newXb+originX;									// Add the origin to the points
+				newY = newYb+originY;
+				rotatedMatrix[i][j][0]=(int)Math.round(newX);			
+				rotatedMatrix[i][j][1]=(int)Math.round(newY);
+				if (verbose){System.out.print((int)newX+":"+(int)newY+" ");}
+			}
+			if (verbose){System.out.print("\n");}
+		}
+		// Recheck the estimate size
+		// TODO
+		// Return
+		return rotatedMatrix;
+	}
+	// Search for the rotation (in steps of 0.1 degrees from startDegrees) which gives the smallest bounding box
+	private float findRotation(float startDegrees){
+		ArrayList<int[]> rotatedActual = TMAinput;
+		if (startDegrees!=0){
+			rotatedActual = rotate(TMAinput,startDegrees);
+		}
+		int currentSize;
+		int newSize;
+		float degrees = startDegrees;	// Correction amount required (can also be used to indicate current direction of rotation)
+		float change = 0.1f;		// Change to make to the current rotation
+		do {
+			// Calculate the actual TMA dimensions
+			ArrayList<Integer> xValues = new ArrayList<Integer>();
+			ArrayList<Integer> yValues = new ArrayList<Integer>();
+			for (int[] points : rotatedActual) {
+				xValues.add(points[0]);
+				yValues.add(points[1]);
+			}
+			int minX = Collections.min(xValues);
+			int maxX = Collections.max(xValues);
+			int minY = Collections.min(yValues);
+			int maxY = Collections.max(yValues);
+			int sizeX = maxX-minX;	// Size needed for checking suitability of fit later.
+			int sizeY = maxY-minY;
+			currentSize = (sizeX+sizeY);
+			if (verbose){System.out.println("Current "+sizeX+" "+sizeY);}
+			// Rotate clockwise (unless already started a rotation anticlockwise)
+			newSize=Integer.MAX_VALUE;
+			if (degrees>=startDegrees){	// Adjust clockwise
+				// Rotate clockwise
+				ArrayList<int[]> rotatedActualNew = rotate(rotatedActual,change);
+				// Calculate new size
+				int[] gridSize = arraySize(rotatedActualNew);
+				if (verbose){System.out.println("CW "+gridSize[0]+" "+gridSize[1]);}
+				newSize=gridSize[2];
+				if (newSize<currentSize){
+					degrees=degrees+change;
+					rotatedActual = rotatedActualNew;
+				}
+			}
+			// Rotate anticlockwise (unless already started a rotation clockwise)
+			if (degrees<=startDegrees){
+				// Rotate clockwise
+				ArrayList<int[]> rotatedActualNew  = rotate(rotatedActual,-change);
+				// Calculate new size
+				int[] gridSize = arraySize(rotatedActualNew);
+				if (verbose){System.out.println("AC "+gridSize[0]+" "+gridSize[1]);}
+				newSize=gridSize[2];
+				if (newSize<currentSize){
+					degrees=degrees-change;
+					rotatedActual = rotatedActualNew;
+				}
+			}
+			if (verbose){System.out.println("- "+currentSize+" "+newSize);}
+		} while(currentSize>newSize);	// Do while the new size is smaller than the previous size
+		return degrees;
+	}
+	private ArrayList<int[]> rotate(ArrayList<int[]> points, float degrees){
+		ArrayList<int[]> rotatedArray = new ArrayList<int[]>();
+		// Calculate the dimensions
+		ArrayList<Integer> xValues = new ArrayList<Integer>();
+		ArrayList<Integer> yValues = new ArrayList<Integer>();
+		for (int[] point : points) {
+			xValues.add(point[0]);
+			yValues.add(point[1]);
+		}
+		int minX = Collections.min(xValues);
+		int maxX = Collections.max(xValues);
+		int minY = Collections.min(yValues);
+		int maxY = Collections.max(yValues);
+		int sizeX = maxX-minX;
+		int sizeY = maxY-minY;
+		// - Calculate the point to rotate around:
+		double originX = (sizeX/2)+minX;
+		double originY = (sizeY/2)+minY;
+		if (verbose){System.out.println("Origin: "+originX+","+originY);}
+		// Rotate:
+		//double angle = degrees*(Math.PI/180);
+		double angle = Math.toRadians(degrees);
+		//double angle = degrees;
+		for (int[] point : points){
+			double newX = point[0]-originX;							// Move point to the origin
+			double newY = point[1]-originY;
+			double newXb = (newX*Math.cos(angle))-(newY*Math.sin(angle));		// Rotate point 
+			double newYb = (newX)*Math.sin(angle)+(newY)*Math.cos(angle);
+			newX = newXb+originX;									// Add the origin to the points
+			newY = newYb+originY;
+			rotatedArray.add(new int[] {(int)Math.round(newX), (int)Math.round(newY)});	// Without Math.round typecast will always round down (causing small changes to Origin)
+		}
+		return rotatedArray;
+	}
+	private int[] arraySize(ArrayList<int[]> points){
+		// Calculate the actual TMA dimensions
+		int[] size = new int[3];
+		ArrayList<Integer> xValues = new ArrayList<Integer>();
+		ArrayList<Integer> yValues = new ArrayList<Integer>();
+		for (int[] point : points) {
+			xValues.add(point[0]);
+			yValues.add(point[1]);
+		}
+		int minX = Collections.min(xValues);
+		int maxX = Collections.max(xValues);
+		int minY = Collections.min(yValues);
+		int maxY = Collections.max(yValues);
+		int sizeX = maxX-minX;	// Size needed for checking suitability of fit later.
+		int sizeY = maxY-minY;
+		size[0] = sizeX;
+		size[1] = sizeY;
+		size[2] = sizeX+sizeY;
+		return size;
+	}
+	public static boolean isAlgorithm(String algorithm) {
+		return Arrays.asList(ALGORITHMS).contains(algorithm);
+	}
+	// Run the expected grid and matching steps with the chosen algorithm (one of ALGORITHMS)
+	// Returns the number of cores which were overwritten or left out (always 0 for the hungarian algorithm)
+	// (workspace can be null, or a HungarianMatch object kept between TMAs so its matrices are reused)
+	public int match(String algorithm, boolean autoRotate, HungarianMatch workspace) {
+		boolean ownWorkspace = (workspace==null);
+		if (ownWorkspace){
+			workspace = new HungarianMatch();
+		}
+		MatchPlanner.claim(workspace);	// Its matrices can't be taken by a thread waiting for memory while in use
+		try {
+			priorUsed = false;
+			priorSample = null;
+			int failFlag = matchWith(algorithm, autoRotate, workspace);
+			if (priorUsed){
+				prior.used.incrementAndGet();
+			}
+			return failFlag;
+		} finally {
+			if (ownWorkspace){
+				MatchPlanner.discard(workspace);
+			}
+			else {
+				MatchPlanner.unclaim(workspace);
+			}
+		}
+	}
+	private int matchWith(String algorithm, boolean autoRotate, HungarianMatch workspace) {
+		degraded = false;
+		degradedReason = "";
+		if (reference!=null){
+			matchedBy = "registration";
+			return SectionRegistration.register(this, reference, workspace, timeBudgetMillis);	// Serial section - align to the earlier result
+		}
+		// The fast path finds its own rotation and never overwrites a cell, so it is skipped when the user has turned
+		// rotation correction off or asked for exact matching (which keeps its overwrites as the error count)
+		if (projectionFastPath && autoRotate && !algorithm.equals("exact") && TMApositionsProjection()){
+			matchedBy = "projection";
+			if (prior!=null){
+				priorSample = new double[] {rotation, pitch, shear};
+				prior.learn(priorSample);
+			}
+			return 0;		// Well aligned array, rows and columns found directly
+		}
+		if (algorithm.equals("lattice")){
+			// Locally warped array - walk the neighbouring cores instead of fitting a global grid
+			matchedBy = "lattice";
+			int failFlag;
+			int permits = MatchPlanner.acquire(MatchPlanner.estimateBytes("lattice", TMAinput.size(), TMAWidth*TMAHeight), workspace);
+			try {
+				long start = System.nanoTime();	// After admission, as for the other engines
+				failFlag = LatticeWalk.match(this, workspace, (timeBudgetMillis>0) ? start+timeBudgetMillis*1000000L : Long.MAX_VALUE);
+			} finally {
+				MatchPlanner.release(permits, workspace);
+			}
+			if (failFlag>=0){
+				return failFlag;
+			}
+			// Too few cores to find the lattice (left to the planner), or out of time before it was found (degraded)
+			algorithm = degraded ? "greedy" : "auto";
+		}
+		rotation = 0;
+		pitch = 0;
+		shear = 0;
+		expectedMatrix(autoRotate);
+		if (prior!=null && autoRotate){
+			priorSample = new double[] {rotation, 0, 0};	// Only the angle is known without the projection
+			prior.learn(priorSample);
+		}
+		int cores = TMAinput.size();
+		int cells = TMAWidth*TMAHeight;
+		String engine = algorithm;
+		if (algorithm.equals("auto")){
+			int collisions = predictedCollisions();
+			engine = MatchPlanner.choose(cores, cells, collisions, timeBudgetMillis);
+			if (verbose){System.out.println("Automatic selection for "+TMAname+": "+engine+" ("+collisions+" shared closest cells, Munkres estimate "+(MatchPlanner.estimateBytes("hungarian",cores,cells)>>20)+"MB, "+(long)MatchPlanner.estimateMillis("hungarian",cores,cells)+"ms)");}
+		}
+		matchedBy = engine;
+		// Wait for enough of the heap budget to be free before allocating the matrices (including any the workspace kept)
+		int permits = MatchPlanner.acquire(MatchPlanner.estimateBytes(engine, cores, cells), workspace);
+		try {
+			if (engine.equals("exact")){
+				return TMApositionsExact();
+			}
+			if (engine.equals("greedy")){
+				return TMApositionsGreedy();
+			}
+			long start = System.nanoTime();	// After admission, so time spent waiting for memory isn't counted
+			workspace.setDeadline((timeBudgetMillis>0) ? start+timeBudgetMillis*1000000L : Long.MAX_VALUE);
+			TMApositionsHungarian(workspace);
+			if (workspace.timedOut){
+				// Munkres took too long - use greedy matching instead and flag the TMA
+				degraded = true;
+				degradedReason = "Munkres matching exceeded the "+timeBudgetMillis+"ms time budget, greedy matching used instead";
+				matchedBy = "greedy";
+				return TMApositionsGreedy();
+			}
+			return 0;
+		} finally {
+			MatchPlanner.release(permits, workspace);
+		}
+	}
+	// Number of cells which are the closest cell for more than one core (the collisions exact matching would have)
+	public int predictedCollisions() {
+		int cellCount = TMAWidth*TMAHeight;
+		int[] expectedX = new int[cellCount];
+		int[] expectedY = new int[cellCount];
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				expectedX[i*TMAHeight+j] = TMAexpected[i][j][0];
+				expectedY[i*TMAHeight+j] = TMAexpected[i][j][1];
+			}
+		}
+		PointIndex cellIndex = new PointIndex(expectedX, expectedY);
+		int[] closestCount = new int[cellCount];
+		int collisions = 0;
+		for (int[] curPoint : TMAinput){
+			int cell = cellIndex.nearest(curPoint[0], curPoint[1]);
+			closestCount[cell]++;
+			if (closestCount[cell]==2){
+				collisions++;
+			}
+		}
+		return collisions;
+	}
+	// Some TMAs are distorted such that multiple cores share the same closest expected point.
+	// The hungarian algorithm is one solution which (while more complicated) may if implemented come up with an optimal solution.
+	public int TMApositionsExact() {
+		// Calculate distance between 2 points:
+		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
+		int failFlag = 0;
+		for (int[] curPoint :TMAinput){
+			// Find closest point
+			int ClosestX = Integer.MAX_VALUE;
+			int ClosestY = Integer.MAX_VALUE;
+			double distanceCur = Integer.MAX_VALUE;	// Start with furthest possible distance
+			double distanceNew;		// We are using large enough numbers that rounding from double to int should be fine
+			for (int i=0; i<TMAWidth;i++){
+				for (int j=0; j<TMAHeight;j++){
+					distanceNew = Math.hypot(curPoint[0]-TMAexpected[i][j][0],curPoint[1]-TMAexpected[i][j][1]); // distance = Math.hypot(x1-x2, y1-y2)
+					//System.out.println("Testing: "+curPoint[0]+":"+curPoint[1]+" is "+distanceNew+" from "+TMAexpected[i][j][0]+":"+TMAexpected[i][j][1]+" Postion = "+i+":"+j);
+					if (distanceNew<distanceCur){
+						distanceCur = distanceNew;
+						ClosestX = i;
+						ClosestY = j;
+					}					
+				}
+			}
+			// Store the result
+			if (matrix[ClosestX][ClosestY][0]!=0 || matrix[ClosestX][ClosestY][1]!=0){
+				failFlag++;
+			}
+			matrix[ClosestX][ClosestY][0]=curPoint[0];	
+			matrix[ClosestX][ClosestY][1]=curPoint[1];
+
+		}
+		//if (failFlag>0){
+		//	System.out.println("WARNING: Perfect match not possible. Output contains errors. ("+failFlag+")");
+		//}
+		// Return the updated matrix
+		TMAactual = matrix;
+		return failFlag;
+	}
+	// Fast path for well aligned arrays:
+	// Estimate the rotation from the nearest neighbour directions, undo it and project the cores onto each axis.
+	// Sorting the projected values and splitting at large gaps gives the columns (X) and rows (Y).
+	// Only used when the number of columns/rows matches the grid size, every column/row is clearly separated
+	// and no two cores share a cell, otherwise returns false so the full matching can be run.
+	public boolean TMApositionsProjection() {
+		projectionAttempts.incrementAndGet();
+		int count = TMAinput.size();
+		if (count<4 || TMAWidth<2 || TMAHeight<2 || count>TMAWidth*TMAHeight){
+			return false;
+		}
+		int[] xValues = new int[count];
+		int[] yValues = new int[count];
+		for (int p=0; p<count; p++){
+			xValues[p] = TMAinput.get(p)[0];
+			yValues[p] = TMAinput.get(p)[1];
+		}
+		// Try the angle and pitch of the other TMAs in the batch first, which saves the nearest neighbour search
+		double angle = 0;
+		double[] u = new double[count];
+		double[] v = new double[count];
+		int[] col = null;
+		int[] row = null;
+		boolean usedPrior = false;
+		if (prior!=null && prior.hasGrid()){
+			angle = Math.toRadians(prior.getAngle());
+			pitch = prior.getPitch();
+			projectAxes(xValues, yValues, angle, u, v);
+			col = clusterProjection(u, TMAWidth, pitch/2);
+			row = clusterProjection(v, TMAHeight, pitch/2);
+			usedPrior = (col!=null && row!=null);
+		}
+		if (!usedPrior){
+			// Rotation and spacing (pitch) from the nearest neighbour of each core
+			// Angles are multiplied by 4 before averaging so directions 90 degrees apart agree
+			PointIndex index = new PointIndex(xValues, yValues);
+			double[] spacing = new double[count];
+			double sumCos = 0;
+			double sumSin = 0;
+			for (int p=0; p<count; p++){
+				int[] closest = index.nearest(xValues[p], yValues[p], 2);
+				int neighbour = (closest[0]==p) ? closest[1] : closest[0];
+				double dx = xValues[neighbour]-xValues[p];
+				double dy = yValues[neighbour]-yValues[p];
+				spacing[p] = Math.hypot(dx, dy);
+				if (spacing[p]==0){
+					return false;	// Two cores at the same position
+				}
+				double neighbourAngle = Math.atan2(dy, dx);
+				sumCos += Math.cos(4*neighbourAngle);
+				sumSin += Math.sin(4*neighbourAngle);
+			}
+			angle = Math.atan2(sumSin, sumCos)/4;
+			Arrays.sort(spacing);
+			pitch = spacing[count/2];	// Median spacing
+			projectAxes(xValues, yValues, angle, u, v);
+			col = clusterProjection(u, TMAWidth, pitch/2);
+			row = clusterProjection(v, TMAHeight, pitch/2);
+			if (col==null || row==null){
+				return false;
+			}
+		}
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
+		boolean[][] used = new boolean[TMAWidth][TMAHeight];
+		for (int p=0; p<count; p++){
+			if (used[col[p]][row[p]]){
+				return false;	// Two cores in the same cell
+			}
+			used[col[p]][row[p]] = true;
+			matrix[col[p]][row[p]][0] = xValues[p];
+			matrix[col[p]][row[p]][1] = yValues[p];
+		}
+		// Expected positions are the column/row centres rotated back
+		double[] colCentre = new double[TMAWidth];
+		double[] rowCentre = new double[TMAHeight];
+		int[] colCount = new int[TMAWidth];
+		int[] rowCount = new int[TMAHeight];
+		for (int p=0; p<count; p++){
+			colCentre[col[p]] += u[p];
+			colCount[col[p]]++;
+			rowCentre[row[p]] += v[p];
+			rowCount[row[p]]++;
+		}
+		int[][][] expected = new int[TMAWidth][TMAHeight][2];
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				double cu = colCentre[i]/colCount[i];
+				double cv = rowCentre[j]/rowCount[j];
+				expected[i][j][0] = (int)Math.round(cu*cos-cv*sin);
+				expected[i][j][1] = (int)Math.round(cu*sin+cv*cos);
+			}
+		}
+		// Shear: how far each core is along its column against how far down the grid its row is
+		double meanV = 0;
+		for (int p=0; p<count; p++){
+			meanV += v[p];
+		}
+		meanV = meanV/count;
+		double sumUV = 0;
+		double sumVV = 0;
+		for (int p=0; p<count; p++){
+			double du = u[p]-colCentre[col[p]]/colCount[col[p]];
+			double dv = rowCentre[row[p]]/rowCount[row[p]]-meanV;
+			sumUV += du*dv;
+			sumVV += dv*dv;
+		}
+		shear = (sumVV>0) ? sumUV/sumVV : 0;
+		TMAexpected = expected;
+		TMAactual = matrix;
+		rotation = Math.toDegrees(angle);
+		if (usedPrior){
+			priorUsed = true;
+		}
+		projectionTaken.incrementAndGet();
+		return true;
+	}
+	// Rotate the points by -angle (radians) so the grid lines up with the axes: u along the rows, v down the columns
+	private static void projectAxes(int[] xValues, int[] yValues, double angle, double[] u, double[] v){
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		for (int p=0; p<xValues.length; p++){
+			u[p] = xValues[p]*cos+yValues[p]*sin;
+			v[p] = -xValues[p]*sin+yValues[p]*cos;
+		}
+	}
+	// Split sorted 1D values into clusters wherever the gap between neighbours is larger than gap.
+	// Returns the cluster number for each value, or null if the number of clusters isn't as expected or a cluster
+	// is wider than the gap (so can't be told apart from its neighbours with confidence)
+	private static int[] clusterProjection(final double[] values, int expected, double gap) {
+		Integer[] order = new Integer[values.length];
+		for (int p=0; p<values.length; p++){
+			order[p] = p;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){public int compare(Integer a, Integer b){return Double.compare(values[a], values[b]);}});
+		int[] cluster = new int[values.length];
+		int current = 0;
+		double clusterStart = values[order[0]];
+		for (int p=1; p<order.length; p++){
+			if (values[order[p]]-values[order[p-1]]>gap){
+				current++;
+				clusterStart = values[order[p]];
+				if (current>=expected){
+					return null;
+				}
+			}
+			else if (values[order[p]]-clusterStart>gap){
+				return null;
+			}
+			cluster[order[p]] = current;
+		}
+		if (current!=expected-1){
+			return null;
+		}
+		return cluster;
+	}
+	public static String projectionSummary() {
+		return projectionTaken.get()+" of "+projectionAttempts.get()+" TMAs used the projection fast path";
+	}
+	// Alternative to the exact matching which never overwrites a cell:
+	// Collect the closest few cells for each core, sort every (core, cell) pair by distance and assign the closest pairs first.
+	// Returns the number of cores which could not be given a cell (only possible with more cores than cells)
+	public int TMApositionsGreedy() {
+		int cellCount = TMAWidth*TMAHeight;
+		int candidates = Math.min(GREEDY_CANDIDATES, cellCount);
+		// Index the expected positions (cell number = i*TMAHeight+j)
+		int[] expectedX = new int[cellCount];
+		int[] expectedY = new int[cellCount];
+		for (int i=0; i<TMAWidth;i++){
+			for (int j=0; j<TMAHeight;j++){
+				expectedX[i*TMAHeight+j] = TMAexpected[i][j][0];
+				expectedY[i*TMAHeight+j] = TMAexpected[i][j][1];
+			}
+		}
+		PointIndex cellIndex = new PointIndex(expectedX, expectedY);
+		// Candidate pairs sorted by distance. Each pair is packed into a long as (distance bits << 32 | pair number)
+		// so a primitive sort can be used (float bits of positive numbers sort in the same order as the numbers)
+		int[] pairCore = new int[TMAinput.size()*candidates];
+		int[] pairCell = new int[pairCore.length];
+		long[] pairs = new long[pairCore.length];
+		int pairCount = 0;
+		for (int core=0; core<TMAinput.size(); core++){
+			int[] curPoint = TMAinput.get(core);
+			for (int cell : cellIndex.nearest(curPoint[0], curPoint[1], candidates)){
+				float distance = (float)Math.sqrt(cellIndex.distanceSquared(cell, curPoint[0], curPoint[1]));
+				pairCore[pairCount] = core;
+				pairCell[pairCount] = cell;
+				pairs[pairCount] = ((long)Float.floatToIntBits(distance)<<32) | pairCount;
+				pairCount++;
+			}
+		}
+		Arrays.sort(pairs, 0, pairCount);
+		// Assign the closest pairs first, skipping any where the core or cell is already taken
+		int[] coreCell = new int[TMAinput.size()];
+		Arrays.fill(coreCell, -1);
+		boolean[] cellTaken = new boolean[cellCount];
+		for (int p=0; p<pairCount; p++){
+			int pair = (int)pairs[p];
+			if (coreCell[pairCore[pair]]==-1 && !cellTaken[pairCell[pair]]){
+				coreCell[pairCore[pair]] = pairCell[pair];
+				cellTaken[pairCell[pair]] = true;
+			}
+		}
+		// Cores whose candidate cells were all taken get the closest free cell (rare, so a full search is fine)
+		int failFlag = 0;
+		for (int core=0; core<TMAinput.size(); core++){
+			if (coreCell[core]!=-1){
+				continue;
+			}
+			int[] curPoint = TMAinput.get(core);
+			long distanceCur = Long.MAX_VALUE;
+			for (int cell=0; cell<cellCount; cell++){
+				if (!cellTaken[cell] && cellIndex.distanceSquared(cell, curPoint[0], curPoint[1])<distanceCur){
+					distanceCur = cellIndex.distanceSquared(cell, curPoint[0], curPoint[1]);
+					coreCell[core] = cell;
+				}
+			}
+			if (coreCell[core]==-1){
+				failFlag++;		// More cores than cells
+			}
+			else {
+				cellTaken[coreCell[core]] = true;
+			}
+		}
+		// Store the result
+		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
+		for (int core=0; core<TMAinput.size(); core++){
+			if (coreCell[core]!=-1){
+				matrix[coreCell[core]/TMAHeight][coreCell[core]%TMAHeight][0] = TMAinput.get(core)[0];
+				matrix[coreCell[core]/TMAHeight][coreCell[core]%TMAHeight][1] = TMAinput.get(core)[1];
+			}
+		}
+		TMAactual = matrix;
+		return failFlag;
+	}
+	// Alternative to the above function which uses the hungarian algorithm to make the assignments
+	public void TMApositionsHungarian() {
+		TMApositionsHungarian(new HungarianMatch());
+	}
+	// As above but using a supplied HungarianMatch object, so a pooled object can reuse its matrices between TMAs
+	public void TMApositionsHungarian(HungarianMatch pointCloud) {
+		// Calculate distance between 2 points:
+		int[] matches;			// Returned value in the format of [a]=b (where a/b is the order of the input, i/j)
+		int[][] actualPoints;		// Arrays in the format of [X][Y] ie. {{x1,x2,x3},{y1,y2,y3}}
+		int[][] estimatedPoints;
+		
+		// Reformat ArrayList<int[]> TMAinput to actualPoints
+		actualPoints = new int[2][TMAinput.size()];
+		int counter = 0;
+		for (int[] point : TMAinput){
+			actualPoints[0][counter]=point[0];	// Add X
+			actualPoints[1][counter]=point[1];	// Add Y
+			counter++;
+		}
+		
+		// Reformat int[][][] TMAexpected to estimatedPoints - TMAexpected[i][j][0/1] (X/Y)
+		estimatedPoints = new int[2][TMAWidth*TMAHeight];
+		counter = 0;
+		for (int i=0;i<TMAWidth;i++){
+			for (int j=0;j<TMAHeight;j++){
+				// Current position = ((i+1)*(j+1))-1
+				estimatedPoints[0][counter]=TMAexpected[i][j][0];
+				estimatedPoints[1][counter]=TMAexpected[i][j][1];
+				counter++;
+			}		
+		}
+		
+		pointCloud.setDistances(estimatedPoints,actualPoints);		// Takes 2 arrays with lists of x/y co-ordinates
+		pointCloud.addFakePoints();		// Algorithm works and produces the same results without this
+		pointCloud.calcMatrices();						// Calculate the matrices
+		matches = pointCloud.getAssignments();				// Return the assignments
+		
+		// Convert the assignments back into a matrix:
+		// - Dimension 1 order is the same as the input array list (Can use newX[matches[i]] = TMAinput.indexOf(i))
+		// - Dimension 2 order is row wise top left to bottom right (Can use newY[matches[i]] = TMAinput.indexOf(i))
+		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
+		counter = 0;
+		for (int i=0;i<TMAWidth;i++){
+			for (int j=0;j<TMAHeight;j++){
+				if (matches[counter]==Integer.MAX_VALUE) {
+					// No assignment made - Due to matrix size difference
+					//System.out.println("No assignment");
+				}
+				else if (matches[counter]>=actualPoints[0].length) {
+					// Matched to dummy worker which doesn't exist
+					//System.out.println("Dummy line ignored");
+				}
+				else {		// If the values are the maximum then no match was found - Ignore
+					matrix[i][j][0]=actualPoints[0][matches[counter]];	// Look up the values in the actualPoints array
+					matrix[i][j][1]=actualPoints[1][matches[counter]];
+				}
+				counter++;
+			}		
+		}		
+		
+		// Return the updated matrix
+		TMAactual = matrix;
+	}
+}
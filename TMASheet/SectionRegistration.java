@@ -0,0 +1,386 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Match a serial section against the saved result of an earlier section from the same TMA block.
+ * The earlier result is an almost perfect template, so instead of solving the whole grid:
+ * - Align the reference grid to the new cores with ICP (iterative closest point, rigid rotation and shift)
+ * - Assign each core to the closest aligned reference cell
+ * - Only the cores left over (sharing a cell or too far from any cell) go to a small Munkres solve
+ * Nearest neighbour searches use PointIndex (uniform grid) rather than a kd-tree, as the cores are evenly spread.
+ *
+ * How to use:
+ * Load the earlier results (a .tsv file per TMA as saved by TMAwriteFile) for the TMAs about to be matched:
+ * - SectionRegistration.loadReferences(referenceFolder, TMAs)
+ * Or one TMA at a time:
+ * - File[] results = SectionRegistration.listResults(referenceFolder)
+ * - SectionRegistration.loadReference(referenceFolder, results, TMA)
+ * PointMatrix.match() then uses the reference when one is set. Or call directly (the leftover solve waits for
+ * memory and keeps to the time budget in milliseconds like the other engines, 0 for no limit):
+ * - SectionRegistration.register(TMA, referenceGrid, workspace, timeBudgetMillis)
+ */
+
+class SectionRegistration {
+	static final int MAX_ITERATIONS = 50;		// ICP iterations
+	static final int LEFTOVER_CANDIDATES = 16;	// Closest cells considered for each leftover core
+
+	// Read a saved result back into a [column][row] = {x,y} grid ({0,0} for an empty cell)
+	public static int[][][] readResult(File tsv) throws IOException {
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(tsv));
+		String line;
+		try {
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().isEmpty()) {
+					continue;	// Degraded warnings etc.
+				}
+				rows.add(line.trim().split("\t"));
+			}
+		} finally {
+			reader.close();
+		}
+		if (rows.isEmpty()) {
+			throw new IOException("No grid found in "+tsv);
+		}
+		int width = rows.get(0).length;
+		int[][][] grid = new int[width][rows.size()][2];
+		for (int j=0; j<rows.size(); j++) {
+			for (int i=0; i<width && i<rows.get(j).length; i++) {
+				String[] coord = rows.get(j)[i].split(",");
+				grid[i][j][0] = Integer.parseInt(coord[0].trim());
+				grid[i][j][1] = Integer.parseInt(coord[1].trim());
+			}
+		}
+		return grid;
+	}
+
+	// Set the reference for each TMA with a saved result of the same name in the folder.
+	// If the folder holds a single result it is used for every TMA, with a warning naming it as the names differ.
+	// Returns the number of TMAs given a reference.
+	public static int loadReferences(File referenceFolder, HashMap<String,PointMatrix> TMAs) throws IOException {
+		File[] results = listResults(referenceFolder);
+		int found = 0;
+		for (String TMAname : TMAs.keySet()) {
+			if (loadReference(referenceFolder, results, TMAs.get(TMAname))) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	// The saved results in a folder (not the lists of merged duplicates and removed outliers saved beside them)
+	public static File[] listResults(File referenceFolder) throws IOException {
+		File[] results = referenceFolder.listFiles(new FilenameFilter(){public boolean accept(File folder, String name){return name.endsWith(".tsv") && !name.endsWith(".merged.tsv") && !name.endsWith(".outliers.tsv");}});
+		if (results==null || results.length==0) {
+			throw new IOException("No saved results found in "+referenceFolder);
+		}
+		return results;
+	}
+
+	// Set the reference for a single TMA from the results listed by listResults. Returns false if there isn't one.
+	public static boolean loadReference(File referenceFolder, File[] results, PointMatrix TMA) throws IOException {
+		File result = new File(referenceFolder, TMA.TMAname+".tsv");
+		if (!result.exists() && results.length==1) {
+			result = results[0];
+			System.out.println("WARNING: No "+TMA.TMAname+".tsv in "+referenceFolder+", using "+result.getName()+" (the only result there) as its reference");
+		}
+		if (result.exists()) {
+			TMA.setReference(readResult(result));
+			return true;
+		}
+		System.out.println("No reference for "+TMA.TMAname+", it will be matched from scratch");
+		return false;
+	}
+
+	// Align the reference to the TMA's cores and assign them. Returns the number of cores which couldn't be assigned.
+	// If the leftover solve runs out of time the TMA is matched greedily to the aligned grid instead and marked degraded.
+	public static int register(PointMatrix TMA, int[][][] reference, HungarianMatch workspace, long timeBudgetMillis) {
+		int width = reference.length;
+		int height = reference[0].length;
+		int cellCount = width*height;
+		int cores = TMA.TMAinput.size();
+		// Reference cores (non-empty cells)
+		ArrayList<Integer> referenceCells = new ArrayList<Integer>();
+		for (int i=0; i<width; i++) {
+			for (int j=0; j<height; j++) {
+				if (reference[i][j][0]!=0 || reference[i][j][1]!=0) {
+					referenceCells.add(i*height+j);
+				}
+			}
+		}
+		int refCount = referenceCells.size();
+		double[] refX = new double[refCount];
+		double[] refY = new double[refCount];
+		int[] refXi = new int[refCount];
+		int[] refYi = new int[refCount];
+		for (int k=0; k<refCount; k++) {
+			int cell = referenceCells.get(k);
+			refXi[k] = reference[cell/height][cell%height][0];
+			refYi[k] = reference[cell/height][cell%height][1];
+			refX[k] = refXi[k];
+			refY[k] = refYi[k];
+		}
+		int[] coreX = new int[cores];
+		int[] coreY = new int[cores];
+		for (int p=0; p<cores; p++) {
+			coreX[p] = TMA.TMAinput.get(p)[0];
+			coreY[p] = TMA.TMAinput.get(p)[1];
+		}
+		PointIndex coreIndex = new PointIndex(coreX, coreY);
+		// Pitch of the reference grid (median nearest neighbour distance)
+		double pitch = medianSpacing(new PointIndex(refXi, refYi));
+
+		// ICP - start by matching the centres, then repeatedly pair each reference core with its closest core and
+		// find the rotation/shift which best lines up the pairs (least squares)
+		double angle = 0;
+		double shiftX = mean(coreX)-mean(refX);
+		double shiftY = mean(coreY)-mean(refY);
+		int iteration;
+		for (iteration=0; iteration<MAX_ITERATIONS; iteration++) {
+			double cos = Math.cos(angle);
+			double sin = Math.sin(angle);
+			// Pair up, ignoring pairs much further apart than the others (cores missing from one of the sections)
+			double[] pairDistance = new double[refCount];
+			int[] pairCore = new int[refCount];
+			for (int k=0; k<refCount; k++) {
+				int x = (int)Math.round(refX[k]*cos-refY[k]*sin+shiftX);
+				int y = (int)Math.round(refX[k]*sin+refY[k]*cos+shiftY);
+				pairCore[k] = coreIndex.nearest(x, y);
+				pairDistance[k] = Math.sqrt(coreIndex.distanceSquared(pairCore[k], x, y));
+			}
+			double[] sorted = pairDistance.clone();
+			Arrays.sort(sorted);
+			double maxDistance = Math.max(3*sorted[refCount/2], pitch/4);
+			// Best rotation and shift between the paired points
+			double srcX = 0, srcY = 0, dstX = 0, dstY = 0;
+			int pairs = 0;
+			for (int k=0; k<refCount; k++) {
+				if (pairDistance[k]<=maxDistance) {
+					srcX += refX[k];
+					srcY += refY[k];
+					dstX += coreX[pairCore[k]];
+					dstY += coreY[pairCore[k]];
+					pairs++;
+				}
+			}
+			srcX /= pairs; srcY /= pairs; dstX /= pairs; dstY /= pairs;
+			double dot = 0;
+			double cross = 0;
+			for (int k=0; k<refCount; k++) {
+				if (pairDistance[k]<=maxDistance) {
+					double ax = refX[k]-srcX;
+					double ay = refY[k]-srcY;
+					double bx = coreX[pairCore[k]]-dstX;
+					double by = coreY[pairCore[k]]-dstY;
+					dot += ax*bx+ay*by;
+					cross += ax*by-ay*bx;
+				}
+			}
+			double newAngle = Math.atan2(cross, dot);
+			double newShiftX = dstX-(srcX*Math.cos(newAngle)-srcY*Math.sin(newAngle));
+			double newShiftY = dstY-(srcX*Math.sin(newAngle)+srcY*Math.cos(newAngle));
+			boolean converged = Math.abs(newAngle-angle)<1e-6 && Math.hypot(newShiftX-shiftX, newShiftY-shiftY)<0.01;
+			angle = newAngle;
+			shiftX = newShiftX;
+			shiftY = newShiftY;
+			if (converged) {
+				break;
+			}
+		}
+		TMA.rotation = Math.toDegrees(angle);
+		if (TMA.verbose) {System.out.println("Registered "+TMA.TMAname+" to the reference in "+(iteration+1)+" iterations: rotation "+String.format("%.3f", TMA.rotation)+" degrees, shift "+String.format("%.1f,%.1f", shiftX, shiftY));}
+
+		// Expected positions: the aligned reference, with empty reference cells filled in from a plane fitted to the grid
+		double[] fitX = fitPlane(referenceCells, refX, height);
+		double[] fitY = fitPlane(referenceCells, refY, height);
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		int[][][] expected = new int[width][height][2];
+		int[] expectedX = new int[cellCount];
+		int[] expectedY = new int[cellCount];
+		for (int i=0; i<width; i++) {
+			for (int j=0; j<height; j++) {
+				double x = reference[i][j][0];
+				double y = reference[i][j][1];
+				if (x==0 && y==0) {
+					x = fitX[0]+fitX[1]*i+fitX[2]*j;
+					y = fitY[0]+fitY[1]*i+fitY[2]*j;
+				}
+				expected[i][j][0] = (int)Math.round(x*cos-y*sin+shiftX);
+				expected[i][j][1] = (int)Math.round(x*sin+y*cos+shiftY);
+				expectedX[i*height+j] = expected[i][j][0];
+				expectedY[i*height+j] = expected[i][j][1];
+			}
+		}
+		TMA.TMAexpected = expected;
+
+		// Assign each core to its closest cell when no other core claims it
+		PointIndex cellIndex = new PointIndex(expectedX, expectedY);
+		int[] claimedBy = new int[cellCount];
+		Arrays.fill(claimedBy, -1);
+		int[] coreCell = new int[cores];
+		for (int p=0; p<cores; p++) {
+			int cell = cellIndex.nearest(coreX[p], coreY[p]);
+			coreCell[p] = -1;
+			if (Math.sqrt(cellIndex.distanceSquared(cell, coreX[p], coreY[p]))>pitch/2) {
+				continue;	// Too far from any cell
+			}
+			if (claimedBy[cell]==-1) {
+				claimedBy[cell] = p;
+				coreCell[p] = cell;
+			}
+			else {
+				claimedBy[cell] = -2;	// Shared by more than one core
+			}
+		}
+		ArrayList<Integer> leftoverCores = new ArrayList<Integer>();
+		for (int p=0; p<cores; p++) {
+			if (coreCell[p]!=-1 && claimedBy[coreCell[p]]==-2) {
+				coreCell[p] = -1;
+			}
+			if (coreCell[p]==-1) {
+				leftoverCores.add(p);
+			}
+		}
+		// Leftover cores are assigned to the free cells around them with Munkres
+		int failFlag = 0;
+		if (!leftoverCores.isEmpty()) {
+			ArrayList<Integer> freeCells = new ArrayList<Integer>();
+			boolean[] added = new boolean[cellCount];
+			for (int p : leftoverCores) {
+				for (int cell : cellIndex.nearest(coreX[p], coreY[p], LEFTOVER_CANDIDATES)) {
+					if (claimedBy[cell]<0 && !added[cell]) {
+						added[cell] = true;
+						freeCells.add(cell);
+					}
+				}
+			}
+			if (TMA.verbose) {System.out.println(leftoverCores.size()+" leftover cores matched to "+freeCells.size()+" free cells with Munkres");}
+			if (freeCells.isEmpty()) {
+				failFlag = leftoverCores.size();
+			}
+			else {
+				int[][] cellPoints = new int[2][freeCells.size()];
+				int[][] corePoints = new int[2][leftoverCores.size()];
+				for (int c=0; c<freeCells.size(); c++) {
+					cellPoints[0][c] = expectedX[freeCells.get(c)];
+					cellPoints[1][c] = expectedY[freeCells.get(c)];
+				}
+				for (int p=0; p<leftoverCores.size(); p++) {
+					corePoints[0][p] = coreX[leftoverCores.get(p)];
+					corePoints[1][p] = coreY[leftoverCores.get(p)];
+				}
+				// A poor reference can leave most of the cores over, so wait for memory as the other engines do
+				int permits = MatchPlanner.acquire(MatchPlanner.estimateBytes("hungarian", leftoverCores.size(), freeCells.size()), workspace);
+				try {
+					long start = System.nanoTime();
+					workspace.setDeadline((timeBudgetMillis>0) ? start+timeBudgetMillis*1000000L : Long.MAX_VALUE);
+					workspace.setDistances(cellPoints, corePoints);
+					workspace.addFakePoints();
+					workspace.calcMatrices();
+				} finally {
+					MatchPlanner.release(permits, workspace);
+				}
+				if (workspace.timedOut) {
+					TMA.degraded = true;
+					TMA.degradedReason = "Registration of the "+leftoverCores.size()+" leftover cores exceeded the "+timeBudgetMillis+"ms time budget, greedy matching to the aligned reference used instead";
+					TMA.matchedBy = "greedy";
+					return TMA.TMApositionsGreedy();
+				}
+				int[] matches = workspace.getAssignments();	// [cell] = core
+				boolean[] assigned = new boolean[leftoverCores.size()];
+				for (int c=0; c<freeCells.size(); c++) {
+					if (matches[c]!=Integer.MAX_VALUE && matches[c]<leftoverCores.size()) {
+						coreCell[leftoverCores.get(matches[c])] = freeCells.get(c);
+						assigned[matches[c]] = true;
+					}
+				}
+				for (boolean coreAssigned : assigned) {
+					if (!coreAssigned) {
+						failFlag++;
+					}
+				}
+			}
+		}
+		// Store the result
+		int[][][] matrix = new int[width][height][2];
+		for (int p=0; p<cores; p++) {
+			if (coreCell[p]!=-1) {
+				matrix[coreCell[p]/height][coreCell[p]%height][0] = coreX[p];
+				matrix[coreCell[p]/height][coreCell[p]%height][1] = coreY[p];
+			}
+		}
+		TMA.TMAactual = matrix;
+		return failFlag;
+	}
+
+	private static double medianSpacing(PointIndex index) {
+		if (index.size()<2) {
+			return Double.MAX_VALUE;
+		}
+		double[] spacing = new double[index.size()];
+		for (int p=0; p<index.size(); p++) {
+			int[] closest = index.nearest(index.xValues[p], index.yValues[p], 2);
+			int neighbour = (closest[0]==p) ? closest[1] : closest[0];
+			spacing[p] = Math.sqrt(index.distanceSquared(neighbour, index.xValues[p], index.yValues[p]));
+		}
+		Arrays.sort(spacing);
+		return spacing[spacing.length/2];
+	}
+
+	private static double mean(int[] values) {
+		double total = 0;
+		for (int value : values) {
+			total += value;
+		}
+		return total/values.length;
+	}
+
+	private static double mean(double[] values) {
+		double total = 0;
+		for (double value : values) {
+			total += value;
+		}
+		return total/values.length;
+	}
+
+	// Least squares fit of value = a + b*column + c*row over the reference cores, returns {a,b,c}
+	private static double[] fitPlane(ArrayList<Integer> cells, double[] values, int height) {
+		double[][] normal = new double[3][4];	// Normal equations with the right hand side as the last column
+		for (int k=0; k<cells.size(); k++) {
+			double[] terms = {1, cells.get(k)/height, cells.get(k)%height};
+			for (int a=0; a<3; a++) {
+				for (int b=0; b<3; b++) {
+					normal[a][b] += terms[a]*terms[b];
+				}
+				normal[a][3] += terms[a]*values[k];
+			}
+		}
+		// Gaussian elimination with partial pivoting
+		for (int col=0; col<3; col++) {
+			int pivot = col;
+			for (int row=col+1; row<3; row++) {
+				if (Math.abs(normal[row][col])>Math.abs(normal[pivot][col])) {
+					pivot = row;
+				}
+			}
+			double[] swap = normal[col];
+			normal[col] = normal[pivot];
+			normal[pivot] = swap;
+			if (Math.abs(normal[col][col])<1e-9) {
+				return new double[] {mean(values), 0, 0};	// Not enough cores to fit a plane
+			}
+			for (int row=0; row<3; row++) {
+				if (row!=col) {
+					double factor = normal[row][col]/normal[col][col];
+					for (int k=col; k<4; k++) {
+						normal[row][k] -= factor*normal[col][k];
+					}
+				}
+			}
+		}
+		return new double[] {normal[0][3]/normal[0][0], normal[1][3]/normal[1][1], normal[2][3]/normal[2][2]};
+	}
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Batch runner to process many TMA folders without the user interface.
+ * Folders are parsed and matched concurrently, sharing one pool of worker threads. The first TMAs of each folder by
+ * name (the learners of its geometry prior, see GeometryPrior) are queued ahead of the rest, which wait for the
+ * prior to be fixed once the learners have finished.
+ * Each finished TMA is recorded in a journal file so a restarted run skips the work already done. A learner's entry
+ * also holds what it found for the prior, so a restarted run learns the same prior without matching it again.
+ *
+ * How to use:
+ * - java TMABatch manifest.tsv [workers] [journal] [memory MB]
+ * The manifest is a tab separated file with one folder per line (lines starting with # are ignored):
+ * - source folder (or coordinate manifest file, see TMAsheet.parseManifest), output folder, height, width, rotation correction (true/false), algorithm (hungarian/exact/greedy/auto/lattice),
+ *   time budget per TMA in seconds (0 for no limit), radius in pixels to merge duplicate cores (0 to keep every core),
+ *   folder of an earlier section's results to register against (see SectionRegistration),
+ *   remove points which don't fit the grid (true/false, see PointMatrix.removeOutliers)
+ * Only the source and output folders are required, the other columns default to 10, 10, true, hungarian, 60, 0, no reference and false.
+ * The journal defaults to the manifest file name with ".journal" added. Delete it to rerun everything.
+ * Memory is the heap used for matching at once (see MatchPlanner), half the maximum heap by default.
+ */
+
+public class TMABatch {
+	ArrayList<BatchFolder> folders = new ArrayList<BatchFolder>();
+	HashSet<String> finished = new HashSet<String>();	// Journal entries (source folder + TMA name)
+	HashMap<String,double[]> learnt = new HashMap<String,double[]>();	// Prior samples of the learners in the journal
+	File journalFile;
+	Writer journalWriter;
+	int workers;
+	// Progress counters
+	AtomicInteger completed = new AtomicInteger();
+	AtomicInteger skipped = new AtomicInteger();
+	AtomicInteger failed = new AtomicInteger();
+	ArrayList<String> degradedTMAs = new ArrayList<String>();	// TMAs which ran out of time and need checking or rerunning
+	long startTime;
+	// HungarianMatch objects shared by the workers so the matrices are reused between TMAs (dropped at the end)
+	ArrayBlockingQueue<HungarianMatch> workspaces;
+
+	// Settings for a single line of the manifest
+	static class BatchFolder {
+		File source;
+		File output;
+		int height = 10;
+		int width = 10;
+		boolean autoRotate = true;
+		String algorithm = "hungarian";
+		long timeBudgetMillis = MatchPlanner.timeBudgetMillis;
+		double duplicateRadius = 0;
+		File referenceFolder = null;
+		boolean removeOutliers = false;
+		GeometryPrior prior = new GeometryPrior();	// Learnt from the first TMAs of the folder by name, used for the rest
+	}
+
+	public TMABatch(File manifest, File journal, int workers) throws IOException {
+		this.workers = workers;
+		this.workspaces = new ArrayBlockingQueue<HungarianMatch>(workers);
+		this.journalFile = journal;
+		readManifest(manifest);
+		readJournal();
+	}
+
+	private void readManifest(File manifest) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] columns = line.split("\t");
+			if (columns.length<2) {
+				reader.close();
+				throw new IOException("Manifest line "+lineNumber+" needs at least a source and output folder");
+			}
+			BatchFolder folder = new BatchFolder();
+			folder.source = new File(columns[0].trim());
+			folder.output = new File(columns[1].trim());
+			try {
+				if (columns.length>2) {folder.height = Integer.parseInt(columns[2].trim());}
+				if (columns.length>3) {folder.width = Integer.parseInt(columns[3].trim());}
+				if (columns.length>4) {folder.autoRotate = Boolean.parseBoolean(columns[4].trim());}
+				if (columns.length>5) {folder.algorithm = columns[5].trim();}
+				if (columns.length>6) {folder.timeBudgetMillis = (long)(Double.parseDouble(columns[6].trim())*1000);}
+				if (columns.length>7) {folder.duplicateRadius = Double.parseDouble(columns[7].trim());}
+				if (columns.length>8 && !columns[8].trim().isEmpty()) {folder.referenceFolder = new File(columns[8].trim());}
+				if (columns.length>9) {folder.removeOutliers = Boolean.parseBoolean(columns[9].trim());}
+			} catch (NumberFormatException e) {
+				reader.close();
+				throw new IOException("Manifest line "+lineNumber+" has an invalid number: "+e.getMessage());
+			}
+			if (!PointMatrix.isAlgorithm(folder.algorithm)) {
+				reader.close();
+				throw new IOException("Manifest line "+lineNumber+" has an unknown algorithm: "+folder.algorithm);
+			}
+			folders.add(folder);
+		}
+		reader.close();
+	}
+
+	private void readJournal() throws IOException {
+		if (journalFile.exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// Source folder, TMA name and (for a learner) its prior sample
+				String[] fields = line.split("\t", 3);
+				if (fields.length<2) {
+					continue;
+				}
+				String key = fields[0]+"\t"+fields[1];
+				finished.add(key);
+				if (fields.length==3) {
+					learnt.put(key, GeometryPrior.parse(fields[2]));
+				}
+			}
+			reader.close();
+			System.out.println("Journal "+journalFile+" lists "+finished.size()+" finished TMAs");
+		}
+		journalWriter = new BufferedWriter(new FileWriter(journalFile, true));	// Append to the existing journal
+	}
+
+	private static String journalKey(BatchFolder folder, String TMAname) {
+		return folder.source.getAbsolutePath()+"\t"+TMAname;
+	}
+
+	private synchronized void recordFinished(String key, double[] priorSample) throws IOException {
+		// Flush every entry so a crash loses at most the TMAs still being processed
+		journalWriter.write(key+((priorSample!=null) ? "\t"+GeometryPrior.format(priorSample) : "")+"\n");
+		journalWriter.flush();
+	}
+
+	public void run() throws Exception {
+		startTime = System.nanoTime();
+		final ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try {
+			// Parse the folders on the pool, each folder then queues its own TMAs on the same pool
+			ArrayList<Future<ArrayList<Future<?>>>> folderTasks = new ArrayList<Future<ArrayList<Future<?>>>>();
+			for (final BatchFolder folder : folders) {
+				folderTasks.add(pool.submit(new Callable<ArrayList<Future<?>>>(){public ArrayList<Future<?>> call(){return queueFolder(pool, folder);}}));
+			}
+			// A failed folder or TMA is counted and reported, the others carry on
+			for (Future<ArrayList<Future<?>>> folderTask : folderTasks) {
+				ArrayList<Future<?>> TMAtasks;
+				try {
+					TMAtasks = folderTask.get();
+				} catch (ExecutionException e) {
+					failed.incrementAndGet();
+					System.out.println("ERROR: Failed to queue a folder");
+					e.getCause().printStackTrace();
+					continue;
+				}
+				for (Future<?> TMAtask : TMAtasks) {
+					try {
+						TMAtask.get();
+					} catch (ExecutionException e) {
+						failed.incrementAndGet();
+						System.out.println("ERROR: Failed to process a TMA");
+						e.getCause().printStackTrace();
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();		// The pool threads would otherwise keep the JVM running
+			journalWriter.close();
+			for (HungarianMatch workspace : workspaces) {
+				MatchPlanner.discard(workspace);
+			}
+			workspaces.clear();
+		}
+		report();
+	}
+
+	// Parse a folder and queue a task for every TMA which isn't already in the journal, the geometry prior's learners
+	// first
+	private ArrayList<Future<?>> queueFolder(ExecutorService pool, final BatchFolder folder) {
+		ArrayList<Future<?>> TMAtasks = new ArrayList<Future<?>>();
+		if (!folder.source.exists()) {
+			System.out.println("ERROR: Source folder not found: "+folder.source);
+			failed.incrementAndGet();
+			return TMAtasks;
+		}
+		folder.output.mkdirs();
+		HashMap<String,PointMatrix> TMAs;
+		try {
+			TMAs = TMAsheet.parseSource(folder.source, folder.duplicateRadius, folder.removeOutliers);
+			for (String TMAname : TMAs.keySet()) {
+				TMAs.get(TMAname).setMatrix(folder.width, folder.height);
+			}
+			if (folder.referenceFolder!=null) {
+				SectionRegistration.loadReferences(folder.referenceFolder, TMAs);
+			}
+		} catch (Throwable e) {
+			System.out.println("ERROR: Unable to read "+folder.source+" ("+e+")");
+			failed.incrementAndGet();
+			return TMAtasks;
+		}
+		for (String TMAname : TMAs.keySet()) {
+			PointMatrix TMA = TMAs.get(TMAname);
+			TMA.setParallel();
+			TMA.timeBudgetMillis = folder.timeBudgetMillis;
+			TMA.prior = folder.prior;
+		}
+		// The learners' tasks are queued ahead of the others, so a task waiting for the prior only ever waits for
+		// learners already running. Learners in the journal give back the sample they were learnt from
+		final List<String> learners = GeometryPrior.learners(TMAs.keySet());
+		folder.prior.expect(learners.size());
+		ArrayList<String> TMAnames = new ArrayList<String>(learners);
+		for (String TMAname : TMAs.keySet()) {
+			if (!learners.contains(TMAname)) {
+				TMAnames.add(TMAname);
+			}
+		}
+		for (final String TMAname : TMAnames) {
+			final String key = journalKey(folder, TMAname);
+			final boolean learner = learners.contains(TMAname);
+			if (finished.contains(key)) {
+				skipped.incrementAndGet();
+				if (learner) {
+					if (learnt.containsKey(key)) {
+						folder.prior.learn(learnt.get(key));
+					}
+					folder.prior.learnerFinished();
+				}
+				continue;
+			}
+			final PointMatrix TMA = TMAs.get(TMAname);
+			TMAtasks.add(pool.submit(new Runnable(){public void run(){processTMA(folder, TMAname, TMA, key, learner);}}));
+		}
+		return TMAtasks;
+	}
+
+	// Match a TMA, write it out and record it in the journal. A learner's prior sample is recorded with it, any other
+	// TMA waits for the prior to be fixed first
+	private void processTMA(BatchFolder folder, String TMAname, PointMatrix TMA, String key, boolean learner) {
+		HungarianMatch workspace = null;
+		try {
+			if (!learner) {
+				folder.prior.awaitFixed();
+			}
+			int failFlag;
+			try {
+				workspace = workspaces.poll();
+				if (workspace==null) {
+					workspace = new HungarianMatch();
+				}
+				failFlag = TMA.match(folder.algorithm, folder.autoRotate, workspace);
+			} finally {
+				if (learner) {
+					folder.prior.learnerFinished();	// Even if it failed, or the others would wait forever
+				}
+			}
+			if (failFlag>0) {
+				System.out.println("WARNING: Perfect match not possible for "+TMAname+" in "+folder.source+". Output contains ("+failFlag+") errors.");
+			}
+			if (TMA.degraded) {
+				System.out.println("WARNING: "+TMAname+" in "+folder.source+" degraded - "+TMA.degradedReason);
+				synchronized (degradedTMAs) {
+					degradedTMAs.add(folder.source+File.separator+TMAname);
+				}
+			}
+			TMAsheet.TMAwriteFile(folder.output.getPath(), TMAname, TMA);
+			recordFinished(key, learner ? TMA.priorSample : null);
+			int done = completed.incrementAndGet();
+			System.out.println("Finished "+TMAname+" from "+folder.source+" ("+done+" done, "+String.format("%.1f", rate(done))+" TMAs per minute)");
+		} catch (Throwable e) {
+			failed.incrementAndGet();
+			System.out.println("ERROR: Failed to process "+TMAname+" in "+folder.source);
+			e.printStackTrace();
+		} finally {
+			if (workspace!=null && !workspaces.offer(workspace)) {
+				MatchPlanner.discard(workspace);
+			}
+		}
+	}
+
+	private double rate(int done) {
+		double minutes = (System.nanoTime()-startTime)/60e9;
+		return done/minutes;
+	}
+
+	private void report() {
+		double seconds = (System.nanoTime()-startTime)/1e9;
+		System.out.println("Batch complete: "+folders.size()+" folders, "+completed.get()+" TMAs processed, "+skipped.get()+" skipped (already in journal), "+failed.get()+" failed");
+		System.out.println("Elapsed "+String.format("%.1f", seconds)+" seconds, "+String.format("%.1f", rate(completed.get()))+" TMAs per minute using "+workers+" workers");
+		System.out.println(PointMatrix.projectionSummary());
+		for (BatchFolder folder : folders) {
+			if (folder.prior.hasAngle()) {
+				System.out.println(folder.source+": "+folder.prior.summary());
+			}
+		}
+		if (!degradedTMAs.isEmpty()) {
+			System.out.println(degradedTMAs.size()+" TMAs exceeded their time budget and were matched with a cheaper algorithm (marked DEGRADED in their .tsv file):");
+			for (String TMA : degradedTMAs) {
+				System.out.println("  "+TMA);
+			}
+		}
+	}
+
+	// Main function
+	public static void main(String[] args) throws Exception {
+		if (args.length<1) {
+			System.out.println("Usage: java TMABatch manifest.tsv [workers] [journal] [memory MB]");
+			return;
+		}
+		File manifest = new File(args[0]);
+		int workers = Runtime.getRuntime().availableProcessors();
+		File journal = new File(args[0]+".journal");
+		if (args.length>1) {workers = Integer.parseInt(args[1]);}
+		if (args.length>2) {journal = new File(args[2]);}
+		if (args.length>3) {MatchPlanner.setHeapBudget(Long.parseLong(args[3])<<20);}
+		new TMABatch(manifest, journal, workers).run();
+	}
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Thread safe library interface to the TMA grid matching, for use from other Java programs and services.
+ * All inputs and results are immutable and the matcher holds no state between calls, so one TMAMatcher can be
+ * shared by any number of threads. Each call works on its own PointMatrix and borrows a HungarianMatch object
+ * from a small pool, so there is no locking while matching and the caller's threads don't keep any matrices.
+ *
+ * How to use:
+ * Describe the cores and the grid:
+ * - TMAMatcher.Points points = new TMAMatcher.Points("TMA1", xValues, yValues)
+ * - TMAMatcher.Grid grid = new TMAMatcher.Grid(width, height)
+ * Choose the options (each with... method returns a changed copy):
+ * - TMAMatcher.Options options = TMAMatcher.Options.defaults().withAlgorithm("greedy").withRotation(true)
+ * Match a single TMA, or several in parallel (options.getParallelism() threads):
+ * - TMAMatcher.Result result = TMAMatcher.match(points, grid, options)
+ * - List<TMAMatcher.Result> results = TMAMatcher.matchAll(pointsList, grid, options)
+ * Read the results:
+ * - result.getCell(column, row) gives the {x,y} of the core in that cell (null if empty)
+ */
+
+public final class TMAMatcher {
+	// HungarianMatch objects (and their matrices) kept between calls, at most one per processor. A call borrows one
+	// (or creates one if they are all in use) and returns it afterwards, extra objects are dropped
+	static final int WORKSPACES = Runtime.getRuntime().availableProcessors();
+	private static final ArrayBlockingQueue<HungarianMatch> workspaces = new ArrayBlockingQueue<HungarianMatch>(WORKSPACES);
+
+	private TMAMatcher() {
+	}
+
+	// Immutable set of core positions for one TMA
+	public static final class Points {
+		private final String name;
+		private final int[] xValues;
+		private final int[] yValues;
+
+		public Points(String name, int[] xValues, int[] yValues) {
+			if (xValues.length!=yValues.length) {
+				throw new IllegalArgumentException("X and Y arrays must be the same length");
+			}
+			this.name = name;
+			this.xValues = xValues.clone();
+			this.yValues = yValues.clone();
+		}
+		public String getName() {
+			return name;
+		}
+		public int size() {
+			return xValues.length;
+		}
+		public int getX(int point) {
+			return xValues[point];
+		}
+		public int getY(int point) {
+			return yValues[point];
+		}
+	}
+
+	// Immutable grid size
+	public static final class Grid {
+		private final int width;
+		private final int height;
+
+		public Grid(int width, int height) {
+			if (width<2 || height<2) {
+				throw new IllegalArgumentException("Grid must be at least 2 by 2");
+			}
+			this.width = width;
+			this.height = height;
+		}
+		public int getWidth() {
+			return width;
+		}
+		public int getHeight() {
+			return height;
+		}
+	}
+
+	// Immutable matching options
+	public static final class Options {
+		private final String algorithm;
+		private final boolean rotation;
+		private final boolean projection;
+		private final int parallelism;
+		private final long timeBudgetMillis;
+
+		private Options(String algorithm, boolean rotation, boolean projection, int parallelism, long timeBudgetMillis) {
+			if (!PointMatrix.isAlgorithm(algorithm)) {
+				throw new IllegalArgumentException("Unknown algorithm: "+algorithm);
+			}
+			if (parallelism<1) {
+				throw new IllegalArgumentException("Parallelism must be at least 1");
+			}
+			this.algorithm = algorithm;
+			this.rotation = rotation;
+			this.projection = projection;
+			this.parallelism = parallelism;
+			this.timeBudgetMillis = timeBudgetMillis;
+		}
+		// Munkres matching with rotation correction and the projection fast path, one thread per processor, default time budget
+		public static Options defaults() {
+			return new Options("hungarian", true, true, Runtime.getRuntime().availableProcessors(), MatchPlanner.timeBudgetMillis);
+		}
+		public Options withAlgorithm(String algorithm) {
+			return new Options(algorithm, rotation, projection, parallelism, timeBudgetMillis);
+		}
+		public Options withRotation(boolean rotation) {
+			return new Options(algorithm, rotation, projection, parallelism, timeBudgetMillis);
+		}
+		public Options withProjection(boolean projection) {
+			return new Options(algorithm, rotation, projection, parallelism, timeBudgetMillis);
+		}
+		public Options withParallelism(int parallelism) {
+			return new Options(algorithm, rotation, projection, parallelism, timeBudgetMillis);
+		}
+		// Time allowed per TMA before falling back to a cheaper algorithm (0 = no limit)
+		public Options withTimeBudget(long timeBudgetMillis) {
+			return new Options(algorithm, rotation, projection, parallelism, timeBudgetMillis);
+		}
+		public String getAlgorithm() {
+			return algorithm;
+		}
+		public boolean getRotation() {
+			return rotation;
+		}
+		public boolean getProjection() {
+			return projection;
+		}
+		public int getParallelism() {
+			return parallelism;
+		}
+		public long getTimeBudget() {
+			return timeBudgetMillis;
+		}
+	}
+
+	// Immutable result for one TMA (arrays are copied on the way in and out)
+	public static final class Result {
+		private final String name;
+		private final int[][][] assignment;	// [column][row] = {x,y}, {0,0} for an empty cell (as in the saved .tsv files)
+		private final int[][][] expected;
+		private final String matchedBy;
+		private final double angle;
+		private final double cost;
+		private final int failures;
+		private final long nanos;
+		private final String degradedReason;	// Empty unless the time budget was exceeded
+
+		Result(String name, int[][][] assignment, int[][][] expected, String matchedBy, double angle, double cost, int failures, long nanos, String degradedReason) {
+			this.name = name;
+			this.assignment = copyGrid(assignment);
+			this.expected = copyGrid(expected);
+			this.matchedBy = matchedBy;
+			this.angle = angle;
+			this.cost = cost;
+			this.failures = failures;
+			this.nanos = nanos;
+			this.degradedReason = degradedReason;
+		}
+		public String getName() {
+			return name;
+		}
+		public int getWidth() {
+			return assignment.length;
+		}
+		public int getHeight() {
+			return assignment[0].length;
+		}
+		// {x,y} of the core assigned to a cell, or null if the cell is empty
+		public int[] getCell(int column, int row) {
+			int[] cell = assignment[column][row];
+			if (cell[0]==0 && cell[1]==0) {
+				return null;
+			}
+			return cell.clone();
+		}
+		public int[][][] getAssignment() {
+			return copyGrid(assignment);
+		}
+		public int[] getExpected(int column, int row) {
+			return expected[column][row].clone();
+		}
+		// Algorithm which produced the assignment ("projection" if the fast path was used)
+		public String getMatchedBy() {
+			return matchedBy;
+		}
+		// Rotation of the grid in degrees
+		public double getAngle() {
+			return angle;
+		}
+		// Total distance between each assigned core and its expected position
+		public double getCost() {
+			return cost;
+		}
+		// Cores overwritten or left out (see PointMatrix.match)
+		public int getFailures() {
+			return failures;
+		}
+		public long getNanos() {
+			return nanos;
+		}
+		// True if the time budget was exceeded and a cheaper algorithm used
+		public boolean isDegraded() {
+			return !degradedReason.isEmpty();
+		}
+		public String getDegradedReason() {
+			return degradedReason;
+		}
+	}
+
+	// Match a single TMA
+	public static Result match(Points points, Grid grid, Options options) {
+		long start = System.nanoTime();
+		PointMatrix TMA = new PointMatrix(points.getName());
+		TMA.setParallel();
+		TMA.projectionFastPath = options.getProjection();
+		TMA.timeBudgetMillis = options.getTimeBudget();
+		TMA.setMatrix(grid.getWidth(), grid.getHeight());
+		for (int p=0; p<points.size(); p++) {
+			TMA.addPoint(points.getX(p), points.getY(p));
+		}
+		HungarianMatch workspace = workspaces.poll();
+		if (workspace==null) {
+			workspace = new HungarianMatch();
+		}
+		int failures;
+		try {
+			failures = TMA.match(options.getAlgorithm(), options.getRotation(), workspace);
+		} finally {
+			if (!workspaces.offer(workspace)) {
+				MatchPlanner.discard(workspace);	// Pool already full, drop it and its share of the heap budget
+			}
+		}
+		int[][][] actual = TMA.getActual();
+		int[][][] expected = TMA.getExpected();
+		double cost = 0;
+		for (int i=0; i<grid.getWidth(); i++) {
+			for (int j=0; j<grid.getHeight(); j++) {
+				if (actual[i][j][0]!=0 || actual[i][j][1]!=0) {
+					cost += Math.hypot(actual[i][j][0]-expected[i][j][0], actual[i][j][1]-expected[i][j][1]);
+				}
+			}
+		}
+		return new Result(points.getName(), actual, expected, TMA.matchedBy, TMA.getRotation(), cost, failures, System.nanoTime()-start, TMA.degradedReason);
+	}
+
+	// Match several TMAs using options.getParallelism() threads, results in the same order as the input
+	public static List<Result> matchAll(List<Points> pointsList, final Grid grid, final Options options) throws Exception {
+		ArrayList<Result> results = new ArrayList<Result>();
+		if (options.getParallelism()==1 || pointsList.size()<2) {
+			for (Points points : pointsList) {
+				results.add(match(points, grid, options));
+			}
+			return Collections.unmodifiableList(results);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(options.getParallelism(), pointsList.size()));
+		try {
+			ArrayList<Future<Result>> tasks = new ArrayList<Future<Result>>();
+			for (final Points points : pointsList) {
+				tasks.add(pool.submit(new Callable<Result>(){public Result call(){return match(points, grid, options);}}));
+			}
+			for (Future<Result> task : tasks) {
+				results.add(task.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return Collections.unmodifiableList(results);
+	}
+
+	private static int[][][] copyGrid(int[][][] grid) {
+		int[][][] copy = new int[grid.length][][];
+		for (int i=0; i<grid.length; i++) {
+			copy[i] = new int[grid[i].length][];
+			for (int j=0; j<grid[i].length; j++) {
+				copy[i][j] = grid[i][j].clone();
+			}
+		}
+		return copy;
+	}
+}
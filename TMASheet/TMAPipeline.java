@@ -0,0 +1,226 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pipelined processing of a folder: each TMA is saved as soon as it has been matched instead of after all of them.
+ * Three stages run at the same time, connected by bounded queues (a full queue makes the stage before it wait):
+ * - Read the source, then prepare each TMA (merge duplicates, remove outliers, load its reference) and queue it
+ *   as soon as it's ready, so the preparation overlaps with the matching. The first TMAs by name (the geometry
+ *   prior's learners) are queued first
+ * - Matching workers take TMAs from the first queue and queue the results. The learners are matched in parallel
+ *   like the rest, the other TMAs wait until they have all finished and the prior is fixed
+ * - A writer saves each result as a .tsv file
+ * The time for a folder is then close to the slowest single TMA rather than the total of all of them.
+ *
+ * How to use:
+ * - java TMAPipeline source output [height] [width] [rotation correction] [algorithm] [workers] [memory MB] [duplicate radius] [reference folder] [remove outliers]
+ * The last three are as in the TMABatch manifest (0 to keep every core, - for no reference, true/false).
+ * Or from code (returns the processed TMAs):
+ * - new TMAPipeline(source, output, height, width, autoRotate, algorithm, workers).run()
+ */
+
+public class TMAPipeline {
+	static final int QUEUE_SIZE = 16;		// TMAs waiting between stages
+	static final PointMatrix END = new PointMatrix("END");	// Placed on a queue to mark the end of the input
+
+	File source;
+	File output;
+	int height;
+	int width;
+	boolean autoRotate;
+	String algorithm;
+	int workers;
+	double duplicateRadius = 0;	// Merge cores closer than this while parsing (0 = keep every core)
+	boolean removeOutliers = false;	// Remove points which don't fit the grid while parsing (see PointMatrix.removeOutliers)
+	File referenceFolder = null;	// Earlier section's results to register against (see SectionRegistration)
+	GeometryPrior prior = new GeometryPrior();	// Geometry learnt from the first TMAs by name, used for the rest
+	Set<PointMatrix> learners = Collections.synchronizedSet(new HashSet<PointMatrix>());	// TMAs the prior learns from
+	ArrayBlockingQueue<PointMatrix> parsedQueue = new ArrayBlockingQueue<PointMatrix>(QUEUE_SIZE);
+	ArrayBlockingQueue<PointMatrix> matchedQueue = new ArrayBlockingQueue<PointMatrix>(QUEUE_SIZE);
+	AtomicInteger written = new AtomicInteger();
+	String warnings = "";		// TMAs which were degraded or could not be saved (written by the writer thread only)
+
+	public TMAPipeline(File source, File output, int height, int width, boolean autoRotate, String algorithm, int workers) {
+		this.source = source;
+		this.output = output;
+		this.height = height;
+		this.width = width;
+		this.autoRotate = autoRotate;
+		this.algorithm = algorithm;
+		this.workers = workers;
+	}
+
+	public HashMap<String,PointMatrix> run() throws Exception {
+		final long start = System.nanoTime();
+		output.mkdirs();
+		// Matching workers
+		Thread[] workerThreads = new Thread[workers];
+		for (int w=0; w<workers; w++) {
+			workerThreads[w] = new Thread(new Runnable(){public void run(){matchStage();}}, "TMA match "+w);
+			workerThreads[w].start();
+		}
+		// Writer
+		Thread writerThread = new Thread(new Runnable(){public void run(){writeStage(start);}}, "TMA writer");
+		writerThread.start();
+		// Parse on this thread and feed the workers. A TMA's points are only complete once the whole source has been
+		// read, the rest of the preparation is done one TMA at a time while the workers match the earlier ones
+		HashMap<String,PointMatrix> TMAs = new HashMap<String,PointMatrix>();
+		try {
+			TMAs = TMAsheet.parseSource(source);
+			File[] references = (referenceFolder!=null) ? SectionRegistration.listResults(referenceFolder) : null;
+			ArrayList<String> TMAnames = new ArrayList<String>(TMAs.keySet());
+			Collections.sort(TMAnames);
+			List<String> learnerNames = GeometryPrior.learners(TMAnames);
+			prior.expect(learnerNames.size());
+			for (String TMAname : TMAnames) {
+				PointMatrix TMA = TMAs.get(TMAname);
+				TMAsheet.cleanPoints(TMA, duplicateRadius, removeOutliers);
+				TMA.setMatrix(width, height);
+				TMA.setParallel();
+				TMA.prior = prior;
+				if (references!=null) {
+					SectionRegistration.loadReference(referenceFolder, references, TMA);
+				}
+				if (learnerNames.contains(TMAname)) {
+					learners.add(TMA);	// First by name, so queued ahead of every TMA which waits for them
+				}
+				parsedQueue.put(TMA);
+			}
+		} finally {
+			for (int w=0; w<workers; w++) {
+				putEnd(parsedQueue);	// One end marker per worker
+			}
+		}
+		for (Thread workerThread : workerThreads) {
+			workerThread.join();
+		}
+		writerThread.join();
+		System.out.println("Pipeline finished "+written.get()+" of "+TMAs.size()+" TMAs in "+String.format("%.1f", (System.nanoTime()-start)/1e9)+" seconds");
+		System.out.println(prior.summary());
+		return TMAs;
+	}
+
+	private void matchStage() {
+		HungarianMatch workspace = new HungarianMatch();
+		try {
+			while (true) {
+				PointMatrix TMA = parsedQueue.take();
+				if (TMA==END) {
+					break;
+				}
+				boolean learner = learners.contains(TMA);
+				if (!learner) {
+					prior.awaitFixed();	// Every learner was queued (and taken by a worker) before this TMA
+				}
+				boolean matched = matchTMA(TMA, workspace);
+				if (learner) {
+					prior.learnerFinished();
+				}
+				if (!matched) {
+					MatchPlanner.discard(workspace);	// Don't keep matrices which may be part filled
+					workspace = new HungarianMatch();
+					continue;
+				}
+				matchedQueue.put(TMA);	// Waits if the writer has fallen behind
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			MatchPlanner.discard(workspace);
+			putEnd(matchedQueue);	// Always, or the writer would wait for this worker forever
+		}
+	}
+
+	// Match a TMA, returns false (after reporting the error) if it failed
+	private boolean matchTMA(PointMatrix TMA, HungarianMatch workspace) {
+		try {
+			int failFlag = TMA.match(algorithm, autoRotate, workspace);
+			if (failFlag>0) {
+				System.out.println("WARNING: Perfect match not possible for "+TMA.TMAname+". Output contains ("+failFlag+") errors.");
+			}
+			return true;
+		} catch (Throwable e) {
+			System.out.println("ERROR: Failed to match "+TMA.TMAname);
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	// Queue an end marker even if this thread has been interrupted
+	private static void putEnd(ArrayBlockingQueue<PointMatrix> queue) {
+		boolean interrupted = Thread.interrupted();
+		while (true) {
+			try {
+				queue.put(END);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeStage(long start) {
+		int finishedWorkers = 0;
+		try {
+			while (finishedWorkers<workers) {
+				PointMatrix TMA = matchedQueue.take();
+				if (TMA==END) {
+					finishedWorkers++;
+					continue;
+				}
+				try {
+					TMAsheet.TMAwriteFile(output.getPath(), TMA.TMAname, TMA);
+					written.incrementAndGet();
+					System.out.println("Saved "+TMA.TMAname+" after "+String.format("%.2f", (System.nanoTime()-start)/1e9)+" seconds");
+					if (TMA.degraded) {
+						warnings = warnings+TMA.TMAname+" (degraded) ";
+					}
+				} catch (Throwable e) {
+					System.out.println("ERROR: Failed to write "+TMA.TMAname);
+					e.printStackTrace();
+					warnings = warnings+TMA.TMAname+" (not saved) ";
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Main function
+	public static void main(String[] args) throws Exception {
+		if (args.length<2) {
+			System.out.println("Usage: java TMAPipeline source output [height] [width] [rotation correction] [algorithm] [workers] [memory MB] [duplicate radius] [reference folder] [remove outliers]");
+			return;
+		}
+		int height = 10;
+		int width = 10;
+		boolean autoRotate = true;
+		String algorithm = "hungarian";
+		int workers = Runtime.getRuntime().availableProcessors();
+		if (args.length>2) {height = Integer.parseInt(args[2]);}
+		if (args.length>3) {width = Integer.parseInt(args[3]);}
+		if (args.length>4) {autoRotate = Boolean.parseBoolean(args[4]);}
+		if (args.length>5) {algorithm = args[5];}
+		if (args.length>6) {workers = Integer.parseInt(args[6]);}
+		if (args.length>7) {MatchPlanner.setHeapBudget(Long.parseLong(args[7])<<20);}
+		if (!PointMatrix.isAlgorithm(algorithm)) {
+			System.out.println("Unknown algorithm: "+algorithm);
+			return;
+		}
+		TMAPipeline pipeline = new TMAPipeline(new File(args[0]), new File(args[1]), height, width, autoRotate, algorithm, workers);
+		if (args.length>8) {pipeline.duplicateRadius = Double.parseDouble(args[8]);}
+		if (args.length>9 && !args[9].equals("-")) {pipeline.referenceFolder = new File(args[9]);}
+		if (args.length>10) {pipeline.removeOutliers = Boolean.parseBoolean(args[10]);}
+		pipeline.run();
+	}
+}
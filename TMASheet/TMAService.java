@@ -0,0 +1,315 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Local HTTP service which runs the TMA grid matching without the Swing interface.
+ * Keeps the JVM warm between requests, so other tools (scanner post-processing, QuPath scripts etc.)
+ * can request grid assignments without writing dummy files or launching TMAsheet.
+ *
+ * How to use:
+ * Start the service (defaults: port 8080, one worker per processor, half the maximum heap for matching, only
+ * listens on localhost):
+ * - java TMAService [port] [workers] [memory MB]
+ * Request an assignment, with the points in the body one per line as "x,y":
+ * - POST /match?width=10&height=10&rotate=true&algorithm=hungarian
+ * algorithm is one of hungarian, exact, greedy, auto or lattice. An optional budget=milliseconds limits the matching time,
+ * after which a cheaper algorithm is used and the response starts with a "# DEGRADED" line. merge=pixels merges
+ * duplicate cores closer than this, listing them in "# MERGED" lines. outliers=true removes points which don't fit the
+ * grid (see PointMatrix.removeOutliers), listing them in "# OUTLIER" lines.
+ * The response is the grid in the same tab separated format as the saved .tsv files.
+ * Read the throughput and latency counters:
+ * - GET /stats
+ *
+ * Requests are placed onto a bounded queue. Each worker takes the next request, and when more requests are waiting
+ * than there are workers also its share of them (waiting/workers), which it runs back to back. So concurrent small
+ * requests are batched onto workers, while a burst is still spread over all of them. Each worker keeps its own
+ * HungarianMatch object, so the matrices are reused rather than reallocated for each request. A request which isn't
+ * finished within TIMEOUT_SECONDS is cancelled (HTTP 504). Grids too large to match within the memory budget are
+ * rejected (HTTP 400) before they are queued.
+ */
+
+public class TMAService {
+	static final int QUEUE_SIZE = 256;		// Requests waiting beyond this are rejected (HTTP 503)
+	static final int TIMEOUT_SECONDS = 300;	// Maximum time a request waits for its result (HTTP 504 after this)
+
+	HttpServer server;
+	ExecutorService httpThreads;
+	ExecutorService workerThreads;
+	LinkedBlockingQueue<MatchJob> jobQueue = new LinkedBlockingQueue<MatchJob>(QUEUE_SIZE);
+	int workers;
+	volatile boolean running = true;
+	// Counters (published at /stats)
+	long startTime = System.nanoTime();
+	AtomicLong received = new AtomicLong();
+	AtomicLong completed = new AtomicLong();
+	AtomicLong rejected = new AtomicLong();
+	AtomicLong failed = new AtomicLong();
+	AtomicLong degraded = new AtomicLong();
+	AtomicLong timedOut = new AtomicLong();
+	AtomicLong batches = new AtomicLong();
+	AtomicLong batchedJobs = new AtomicLong();	// Requests taken in all the batches
+	AtomicLong maxBatch = new AtomicLong();
+	AtomicLong pointsMatched = new AtomicLong();
+	AtomicLong totalLatency = new AtomicLong();	// Nanoseconds from request received to result ready
+	AtomicLong maxLatency = new AtomicLong();
+
+	// A single request waiting to be processed
+	static class MatchJob {
+		PointMatrix TMA;
+		String algorithm;
+		boolean autoRotate;
+		long received = System.nanoTime();
+		CompletableFuture<String> result = new CompletableFuture<String>();
+	}
+
+	public TMAService(int port, int workers) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/match", new HttpHandler(){public void handle(HttpExchange exchange) throws IOException {matchRequest(exchange);}});
+		server.createContext("/stats", new HttpHandler(){public void handle(HttpExchange exchange) throws IOException {statsRequest(exchange);}});
+		this.workers = workers;
+		httpThreads = Executors.newFixedThreadPool(Math.max(4, workers*2));	// Threads waiting on results, not doing the work
+		server.setExecutor(httpThreads);
+		workerThreads = Executors.newFixedThreadPool(workers);
+		for (int i=0; i<workers; i++) {
+			workerThreads.submit(new Runnable(){public void run(){workerLoop();}});
+		}
+	}
+
+	public void start() {
+		server.start();
+		System.out.println("TMA matching service listening on "+server.getAddress());
+	}
+
+	public void stop() {
+		running = false;
+		server.stop(0);
+		workerThreads.shutdownNow();
+		httpThreads.shutdownNow();
+	}
+
+	// Worker: take the next request, plus a share of the backlog when more are waiting than there are workers (a
+	// smaller share would leave requests waiting, a larger one would leave other workers idle), and process them
+	// back to back with this worker's HungarianMatch object
+	private void workerLoop() {
+		HungarianMatch workspace = new HungarianMatch();
+		ArrayList<MatchJob> batch = new ArrayList<MatchJob>();
+		while (running) {
+			try {
+				batch.add(jobQueue.take());
+			} catch (InterruptedException e) {
+				MatchPlanner.discard(workspace);
+				return;
+			}
+			int waiting = jobQueue.size();
+			if (waiting>workers) {
+				jobQueue.drainTo(batch, waiting/workers);
+			}
+			batches.incrementAndGet();
+			batchedJobs.addAndGet(batch.size());
+			long currentMax;
+			do {
+				currentMax = maxBatch.get();
+			} while (batch.size()>currentMax && !maxBatch.compareAndSet(currentMax, batch.size()));
+			for (MatchJob job : batch) {
+				if (!job.result.isDone()) {		// Cancelled while waiting on the queue
+					workspace = process(job, workspace);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	// Match one request and complete its result, returns the HungarianMatch object to use for the next one
+	private HungarianMatch process(MatchJob job, HungarianMatch workspace) {
+		try {
+			int failFlag = job.TMA.match(job.algorithm, job.autoRotate, workspace);
+			StringWriter output = new StringWriter();
+			if (job.TMA.degraded) {
+				degraded.incrementAndGet();
+				output.write("# DEGRADED: "+job.TMA.degradedReason+"\n");
+			}
+			if (failFlag>0) {
+				output.write("# WARNING: Perfect match not possible. Output contains ("+failFlag+") errors.\n");
+			}
+			for (String merged : job.TMA.TMAmerged) {
+				output.write("# MERGED: "+merged+"\n");	// Kept and merged duplicate
+			}
+			for (String outlier : job.TMA.TMAoutliers) {
+				output.write("# OUTLIER: "+outlier+"\n");	// Source, position and distance to the nearest core
+			}
+			TMAsheet.TMAwriteGrid(output, job.TMA);
+			pointsMatched.addAndGet(job.TMA.TMAinput.size());
+			job.result.complete(output.toString());
+			return workspace;
+		} catch (Throwable e) {
+			// Includes errors such as running out of memory, so one bad request can't stop the worker
+			job.result.completeExceptionally(e);
+			MatchPlanner.discard(workspace);	// Don't keep matrices which may be part filled
+			return new HungarianMatch();
+		}
+	}
+
+	// POST /match - parse the request, queue it and wait for the result
+	private void matchRequest(HttpExchange exchange) throws IOException {
+		received.incrementAndGet();
+		if (!exchange.getRequestMethod().equals("POST")) {
+			respond(exchange, 405, "Use POST with one x,y point per line\n");
+			return;
+		}
+		MatchJob job = new MatchJob();
+		try {
+			HashMap<String,String> options = parseQuery(exchange.getRequestURI().getRawQuery());
+			int width = Integer.parseInt(getOption(options, "width", "10"));
+			int height = Integer.parseInt(getOption(options, "height", "10"));
+			job.autoRotate = Boolean.parseBoolean(getOption(options, "rotate", "true"));
+			job.algorithm = getOption(options, "algorithm", "hungarian");
+			if (width<2 || height<2) {
+				throw new IllegalArgumentException("Grid must be at least 2 by 2");
+			}
+			if (MatchPlanner.gridBytes((long)width*height)>MatchPlanner.heapBudget) {
+				// Checked before anything is allocated, running out of memory would fail every request being matched
+				throw new IllegalArgumentException("A "+width+" by "+height+" grid needs more than the "+(MatchPlanner.heapBudget>>20)+"MB memory for matching");
+			}
+			if (!PointMatrix.isAlgorithm(job.algorithm)) {
+				throw new IllegalArgumentException("Unknown algorithm: "+job.algorithm);
+			}
+			job.TMA = new PointMatrix(getOption(options, "name", "Default"));
+			job.TMA.setParallel();
+			job.TMA.setMatrix(width, height);
+			job.TMA.timeBudgetMillis = Long.parseLong(getOption(options, "budget", ""+MatchPlanner.timeBudgetMillis));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] coord = line.split("[,\\t ]+");
+				job.TMA.addPoint(Integer.parseInt(coord[0]), Integer.parseInt(coord[1]), "line "+lineNumber);
+			}
+			double duplicateRadius = Double.parseDouble(getOption(options, "merge", "0"));
+			if (duplicateRadius>0) {
+				job.TMA.removeDuplicates(duplicateRadius);
+			}
+			if (Boolean.parseBoolean(getOption(options, "outliers", "false"))) {
+				job.TMA.removeOutliers(PointMatrix.OUTLIER_TOLERANCE);
+			}
+			if (job.TMA.TMAinput.isEmpty()) {
+				throw new IllegalArgumentException("No points given");
+			}
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			respond(exchange, 400, "Invalid request: "+e.getMessage()+"\n");
+			return;
+		}
+		if (!jobQueue.offer(job)) {
+			rejected.incrementAndGet();
+			respond(exchange, 503, "Service busy, try again later\n");
+			return;
+		}
+		try {
+			String output = job.result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			long latency = System.nanoTime()-job.received;
+			totalLatency.addAndGet(latency);
+			long currentMax;
+			do {
+				currentMax = maxLatency.get();
+			} while (latency>currentMax && !maxLatency.compareAndSet(currentMax, latency));
+			completed.incrementAndGet();
+			respond(exchange, 200, output);
+		} catch (TimeoutException e) {
+			job.result.cancel(false);	// Skipped if a worker hasn't started it yet
+			timedOut.incrementAndGet();
+			respond(exchange, 504, "Matching not finished within "+TIMEOUT_SECONDS+" seconds\n");
+		} catch (InterruptedException e) {
+			job.result.cancel(false);
+			rejected.incrementAndGet();
+			respond(exchange, 503, "Service stopping, try again later\n");
+		} catch (ExecutionException e) {
+			failed.incrementAndGet();
+			respond(exchange, 500, "Matching failed: "+e.getCause()+"\n");
+		}
+	}
+
+	// GET /stats - counters as tab separated name/value pairs
+	private void statsRequest(HttpExchange exchange) throws IOException {
+		double uptime = (System.nanoTime()-startTime)/1e9;
+		long done = completed.get();
+		StringBuilder stats = new StringBuilder();
+		stats.append("uptime_seconds\t").append(String.format("%.1f", uptime)).append("\n");
+		stats.append("requests_received\t").append(received.get()).append("\n");
+		stats.append("requests_completed\t").append(done).append("\n");
+		stats.append("requests_rejected\t").append(rejected.get()).append("\n");
+		stats.append("requests_failed\t").append(failed.get()).append("\n");
+		stats.append("requests_degraded\t").append(degraded.get()).append("\n");
+		stats.append("queue_length\t").append(jobQueue.size()).append("\n");
+		stats.append("requests_timed_out\t").append(timedOut.get()).append("\n");
+		long batchCount = batches.get();
+		stats.append("batches\t").append(batchCount).append("\n");
+		stats.append("mean_batch_size\t").append(String.format("%.2f", batchCount==0 ? 0 : (double)batchedJobs.get()/batchCount)).append("\n");
+		stats.append("max_batch_size\t").append(maxBatch.get()).append("\n");
+		stats.append("points_matched\t").append(pointsMatched.get()).append("\n");
+		stats.append("projection_fast_path\t").append(PointMatrix.projectionTaken.get()).append("\n");
+		stats.append("throughput_per_second\t").append(String.format("%.2f", done/uptime)).append("\n");
+		stats.append("mean_latency_ms\t").append(String.format("%.2f", done==0 ? 0 : totalLatency.get()/1e6/done)).append("\n");
+		stats.append("max_latency_ms\t").append(String.format("%.2f", maxLatency.get()/1e6)).append("\n");
+		respond(exchange, 200, stats.toString());
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream output = exchange.getResponseBody();
+		output.write(bytes);
+		output.close();
+	}
+
+	private static HashMap<String,String> parseQuery(String query) throws UnsupportedEncodingException {
+		HashMap<String,String> options = new HashMap<String,String>();
+		if (query==null) {
+			return options;
+		}
+		for (String pair : query.split("&")) {
+			String[] keyValue = pair.split("=", 2);
+			if (keyValue.length==2) {
+				options.put(URLDecoder.decode(keyValue[0], "UTF-8"), URLDecoder.decode(keyValue[1], "UTF-8"));
+			}
+		}
+		return options;
+	}
+
+	private static String getOption(HashMap<String,String> options, String key, String defaultValue) {
+		if (options.containsKey(key)) {
+			return options.get(key);
+		}
+		return defaultValue;
+	}
+
+	// Main function
+	public static void main(String[] args) throws IOException {
+		int port = 8080;
+		int workers = Runtime.getRuntime().availableProcessors();
+		if (args.length>0) {port = Integer.parseInt(args[0]);}
+		if (args.length>1) {workers = Integer.parseInt(args[1]);}
+		if (args.length>2) {MatchPlanner.setHeapBudget(Long.parseLong(args[2])<<20);}
+		new TMAService(port, workers).start();
+	}
+}
@@ -0,0 +1,510 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/*
+ * Conformance and scaling check for the matching engines.
+ * Conformance: every engine is run on random and awkward inputs (ties, rows of equal costs, rectangular matrices,
+ * more cores than cells, cores halfway between cells, a locally warped array and the integer truncated distances
+ * from HungarianMatch.setDistances). Each assignment is checked to be valid (no core or cell used twice, everything
+ * assigned that can be) and its total cost compared with a brute force optimum for small sizes. Munkres must
+ * always match the optimum. The other engines are heuristics so their extra cost is only reported, except the
+ * lattice walk, which must put every core in the cell it was generated for (wherever that cell is determined: the
+ * cores span every row and column and aren't placed halfway between cells), including on the warped array where
+ * no single grid fits and the optimum against the unwarped grid is no guide. Arrays with fewer cores than
+ * LatticeWalk.MIN_CORES are left to the engine MatchPlanner chooses, so the walk itself is checked in the scaling
+ * runs.
+ * The "match" engine is the whole of PointMatrix.match with the projection fast path on, so it fits its own grid
+ * and is scored against that grid (the engine column shows which path it took). Munkres must be optimal there too,
+ * and the projection must put every core in its own cell. The registration case is a later serial section: an
+ * earlier result moved, turned slightly and jittered, matched to that result by SectionRegistration, which must
+ * put every core back in its reference cell at the optimal cost.
+ * Scaling: every engine is timed on grids of increasing size (typical, warped and worst case), recording the time,
+ * the memory allocated (where the JVM can measure it) and the MatchPlanner estimates.
+ *
+ * How to use:
+ * - java TMASolverCheck [report.csv] [largest grid cells] [seed]
+ * Prints a summary and exits with status 1 if any check fails. The report has one line per run:
+ * - check,engine,case,rows,cols,millis,allocated_bytes,estimated_bytes,estimated_millis,cost,optimal_cost,misplaced,valid
+ * (misplaced is the number of cores not in the cell they were generated for, -1 for the cost matrix checks)
+ */
+
+public class TMASolverCheck {
+	static final String[] ENGINES = {"hungarian", "exact", "greedy", "auto", "lattice", "match"};	// Engines run on point sets
+	static final int BRUTE_FORCE_LIMIT = 12;	// Largest side solved by brute force
+	static final int CONFORMANCE_RUNS = 40;		// Random cases per case type
+
+	PrintWriter report;
+	Random random;
+	int failures = 0;
+	int runs = 0;
+	HungarianMatch workspace = new HungarianMatch();
+	HashMap<Long,Integer> truth = new HashMap<Long,Integer>();	// Cell each core of the last point case was generated for
+	boolean truthKnown;		// The cores span every row and column, so the cells can be found from the cores alone
+
+	public TMASolverCheck(PrintWriter report, long seed) {
+		this.report = report;
+		this.random = new Random(seed);
+		report.println("check,engine,case,rows,cols,millis,allocated_bytes,estimated_bytes,estimated_millis,cost,optimal_cost,misplaced,valid");
+	}
+
+	// Munkres directly on cost matrices, compared with brute force
+	public void checkMatrices() {
+		String[] cases = {"random", "ties", "equal_rows", "wide", "tall", "truncated"};
+		for (String matrixCase : cases) {
+			for (int run=0; run<CONFORMANCE_RUNS; run++) {
+				int rows = 1+random.nextInt(BRUTE_FORCE_LIMIT);
+				int cols = rows;
+				if (matrixCase.equals("wide")) {
+					cols = rows+1+random.nextInt(BRUTE_FORCE_LIMIT-rows+1);
+				}
+				if (matrixCase.equals("tall")) {
+					rows = cols+1+random.nextInt(BRUTE_FORCE_LIMIT-cols+1);
+				}
+				int[][] cost = costMatrix(matrixCase, rows, cols);
+				long start = System.nanoTime();
+				long allocated = allocatedBytes();
+				HungarianMatch solver = new HungarianMatch();
+				solver.setMatrix(copy(cost));
+				solver.addFakePoints();
+				solver.calcMatrices();
+				int[] assignment = solver.getAssignments();
+				allocated = allocatedBytes()-allocated;
+				double millis = (System.nanoTime()-start)/1e6;
+				// Assignments to padding rows/columns don't count
+				long total = 0;
+				boolean valid = !solver.timedOut;
+				boolean[] colUsed = new boolean[cols];
+				int assigned = 0;
+				for (int r=0; r<rows; r++) {
+					int c = (r<assignment.length) ? assignment[r] : Integer.MAX_VALUE;
+					if (c==Integer.MAX_VALUE || c>=cols) {
+						continue;
+					}
+					if (colUsed[c]) {
+						valid = false;
+					}
+					colUsed[c] = true;
+					total += cost[r][c];
+					assigned++;
+				}
+				valid = valid && assigned==Math.min(rows, cols);
+				long optimal = bruteForce(cost);
+				record("conformance", "hungarian", matrixCase, rows, cols, millis, allocated, MatchPlanner.estimateBytes("hungarian", cols, rows), MatchPlanner.estimateMillis("hungarian", cols, rows), total, optimal, -1, valid && total==optimal);
+			}
+		}
+	}
+
+	// Every engine on point sets, with the cost measured as in setDistances
+	public void checkPoints() {
+		String[] cases = {"jittered", "missing", "halfway", "duplicates", "extra_cores", "sheared", "warped", "registration"};
+		for (String pointCase : cases) {
+			for (int run=0; run<CONFORMANCE_RUNS; run++) {
+				int width = 2+random.nextInt(3);
+				int height = 2+random.nextInt(3);
+				PointMatrix TMA = pointCase(pointCase, width, height, 60);
+				if (TMA.TMAinput.size()>BRUTE_FORCE_LIMIT && width*height>BRUTE_FORCE_LIMIT) {
+					continue;	// Too big for the brute force (only possible with extra cores)
+				}
+				long optimal = (TMA.TMAexpected==null) ? -1 : bruteForce(pointCosts(TMA));
+				for (String engine : engines(TMA)) {
+					runEngine("conformance", engine, pointCase, TMA, optimal);
+				}
+			}
+		}
+	}
+
+	// Time every engine on grids of increasing size, with some cores missing (typical), locally warped with some
+	// cores missing, with every core halfway between cells (many equal costs, the most work for Munkres) and
+	// registered to an earlier section
+	public void checkScaling(int largest) {
+		for (String pointCase : new String[]{"missing", "warped", "halfway", "registration"}) {
+			for (int side=4; side*side<=largest; side=(int)Math.ceil(side*1.5)) {
+				PointMatrix TMA = pointCase(pointCase, side, side, 60);
+				long optimal = -1;
+				for (String engine : engines(TMA)) {
+					long cost = runEngine("scaling", engine, pointCase, TMA, optimal);
+					if (engine.equals("hungarian")) {
+						optimal = cost;		// Munkres has passed the conformance checks, so is the reference for larger sizes
+					}
+				}
+			}
+		}
+	}
+
+	// Engines for a point case (one with a reference can only be matched through PointMatrix.match)
+	private static String[] engines(PointMatrix TMA) {
+		return (TMA.reference!=null) ? new String[]{"match"} : ENGINES;
+	}
+
+	// Run one engine on a TMA with a fixed expected grid, returns the total cost
+	private long runEngine(String check, String engine, String pointCase, PointMatrix TMA, long optimal) {
+		int cores = TMA.TMAinput.size();
+		int cells = TMA.TMAWidth*TMA.TMAHeight;
+		String chosen = engine;
+		int[][][] expected = TMA.getExpected();	// Engines which fit their own grid (lattice) are still scored against this one
+		System.gc();
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		int failFlag = 0;
+		if (engine.equals("match")) {
+			TMA.projectionFastPath = true;
+			TMA.timeBudgetMillis = 0;
+			failFlag = TMA.match("hungarian", true, workspace);
+			chosen = TMA.matchedBy;
+		}
+		else {
+			if (engine.equals("auto")) {
+				chosen = MatchPlanner.choose(cores, cells, TMA.predictedCollisions(), 0);
+			}
+			if (chosen.equals("lattice")) {
+				TMA.degraded = false;
+				failFlag = LatticeWalk.match(TMA, workspace, Long.MAX_VALUE);
+				if (failFlag<0) {
+					chosen = MatchPlanner.choose(cores, cells, TMA.predictedCollisions(), 0);	// Too few cores for a lattice, as in PointMatrix.match
+				}
+			}
+			if (chosen.equals("exact")) {
+				failFlag = TMA.TMApositionsExact();
+			}
+			else if (chosen.equals("greedy")) {
+				failFlag = TMA.TMApositionsGreedy();
+			}
+			else if (!chosen.equals("lattice")) {
+				workspace.setDeadline(Long.MAX_VALUE);
+				TMA.TMApositionsHungarian(workspace);
+			}
+		}
+		double millis = (System.nanoTime()-start)/1e6;
+		allocated = allocatedBytes()-allocated;
+		// Valid if no core is used more than it appears in the input, and (except for exact matching, which
+		// reports the cores it overwrote) every core or every cell is used
+		HashMap<Long,Integer> available = new HashMap<Long,Integer>();
+		for (int[] core : TMA.TMAinput) {
+			Long key = ((long)core[0]<<32)^(core[1]&0xffffffffL);
+			available.put(key, (available.containsKey(key) ? available.get(key) : 0)+1);
+		}
+		boolean valid = true;
+		int assigned = 0;
+		int misplaced = 0;
+		long total = 0;
+		int[][][] actual = TMA.getActual();
+		if (engine.equals("match")) {
+			// Scored against the grid it fitted (or registered), with the optimum for that grid
+			expected = TMA.getExpected();
+			optimal = check.equals("conformance") ? bruteForce(pointCosts(TMA)) : munkres(pointCosts(TMA));
+		}
+		TMA.TMAexpected = expected;
+		for (int i=0; i<TMA.TMAWidth; i++) {
+			for (int j=0; j<TMA.TMAHeight; j++) {
+				if (actual[i][j][0]==0 && actual[i][j][1]==0) {
+					continue;
+				}
+				Long key = ((long)actual[i][j][0]<<32)^(actual[i][j][1]&0xffffffffL);
+				Integer cell = truth.get(key);
+				if (cell!=null && cell!=i*TMA.TMAHeight+j) {
+					int[] other = actual[cell/TMA.TMAHeight][cell%TMA.TMAHeight];
+					if (other[0]!=actual[i][j][0] || other[1]!=actual[i][j][1]) {
+						misplaced++;	// (A duplicate of the core in its own cell isn't)
+					}
+				}
+				Integer left = available.get(key);
+				if (left==null || left==0) {
+					valid = false;
+				}
+				else {
+					available.put(key, left-1);
+				}
+				total += (int)Math.hypot(expected[i][j][0]-actual[i][j][0], expected[i][j][1]-actual[i][j][1]);
+				assigned++;
+			}
+		}
+		if (chosen.equals("exact") || chosen.equals("registration")) {
+			valid = valid && assigned+failFlag>=Math.min(cores, cells);	// Reports the cores it couldn't place
+		}
+		else {
+			valid = valid && assigned==Math.min(cores, cells);
+		}
+		if (workspace.timedOut) {
+			valid = false;
+		}
+		boolean passed = valid;
+		if ((engine.equals("hungarian") || chosen.equals("hungarian") && engine.equals("match")) && optimal>=0) {
+			passed = valid && total==optimal;	// Munkres must be optimal, the others are heuristics
+		}
+		if ((chosen.equals("lattice") || chosen.equals("projection")) && truthKnown) {
+			passed = valid && misplaced==0 && !TMA.degraded;
+		}
+		if (chosen.equals("registration")) {
+			passed = valid && failFlag==0 && misplaced==0 && total==optimal;
+		}
+		record(check, engine.equals(chosen) ? engine : engine+"("+chosen+")", pointCase, cells, cores, millis, allocated, MatchPlanner.estimateBytes(chosen, cores, cells), MatchPlanner.estimateMillis(chosen, cores, cells), total, optimal, misplaced, passed);
+		return total;
+	}
+
+	private void record(String check, String engine, String testCase, int rows, int cols, double millis, long allocated, long estimatedBytes, double estimatedMillis, long cost, long optimal, int misplaced, boolean passed) {
+		runs++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED: "+check+" "+engine+" "+testCase+" "+rows+"x"+cols+" cost "+cost+" optimal "+optimal+" misplaced "+misplaced);
+		}
+		report.println(check+","+engine+","+testCase+","+rows+","+cols+","+String.format("%.3f", millis)+","+allocated+","+estimatedBytes+","+String.format("%.3f", estimatedMillis)+","+cost+","+optimal+","+misplaced+","+passed);
+		report.flush();
+	}
+
+	private int[][] costMatrix(String matrixCase, int rows, int cols) {
+		int[][] cost = new int[rows][cols];
+		if (matrixCase.equals("truncated")) {
+			// Distances between random points, truncated to ints as in setDistances
+			int[][] points1 = new int[2][rows];
+			int[][] points2 = new int[2][cols];
+			for (int r=0; r<rows; r++) {
+				points1[0][r] = random.nextInt(200);
+				points1[1][r] = random.nextInt(200);
+			}
+			for (int c=0; c<cols; c++) {
+				points2[0][c] = random.nextInt(200);
+				points2[1][c] = random.nextInt(200);
+			}
+			HungarianMatch distances = new HungarianMatch();
+			distances.setDistances(points1, points2);
+			return copy(distances.distanceMatrix);
+		}
+		for (int r=0; r<rows; r++) {
+			int rowValue = random.nextInt(100);
+			boolean equalRow = matrixCase.equals("equal_rows") && random.nextBoolean();
+			for (int c=0; c<cols; c++) {
+				if (equalRow) {
+					cost[r][c] = rowValue;
+				}
+				else if (matrixCase.equals("ties")) {
+					cost[r][c] = random.nextInt(3);
+				}
+				else {
+					cost[r][c] = random.nextInt(100);
+				}
+			}
+		}
+		return cost;
+	}
+
+	// A grid of cells pitch apart with the expected positions already set, and cores placed according to the case
+	// (the cell each core was generated for is kept in truth)
+	private PointMatrix pointCase(String pointCase, int width, int height, int pitch) {
+		if (pointCase.equals("registration")) {
+			return registrationCase(width, height, pitch);
+		}
+		PointMatrix TMA = new PointMatrix(pointCase);
+		TMA.verbose = false;
+		TMA.setMatrix(width, height);
+		TMA.TMAexpected = new int[width][height][2];
+		for (int i=0; i<width; i++) {
+			for (int j=0; j<height; j++) {
+				TMA.TMAexpected[i][j][0] = 100+i*pitch;	// Away from 0,0 which marks an empty cell
+				TMA.TMAexpected[i][j][1] = 100+j*pitch;
+			}
+		}
+		int jitter = pitch/4;
+		truth.clear();
+		boolean[] columnUsed = new boolean[width];
+		boolean[] rowUsed = new boolean[height];
+		for (int i=0; i<width; i++) {
+			for (int j=0; j<height; j++) {
+				int x = TMA.TMAexpected[i][j][0];
+				int y = TMA.TMAexpected[i][j][1];
+				if ((pointCase.equals("missing") || pointCase.equals("warped")) && random.nextInt(8)==0) {
+					continue;
+				}
+				if (pointCase.equals("halfway")) {
+					// Exactly between two cells, so the costs tie
+					x += random.nextBoolean() ? pitch/2 : 0;
+					y += random.nextBoolean() ? pitch/2 : 0;
+				}
+				else if (pointCase.equals("duplicates") && random.nextInt(4)==0) {
+					TMA.addPoint(x, y);
+				}
+				else if (pointCase.equals("sheared")) {
+					x += j*pitch/3;
+				}
+				else if (pointCase.equals("warped")) {
+					// Rows and columns bent by up to a third of the pitch over about 12 cells, plus a little jitter
+					x += (int)Math.round(pitch/3.0*Math.sin(2*Math.PI*j/12)+pitch/6.0*Math.sin(2*Math.PI*i/17))+random.nextInt(jitter/3+1)-jitter/6;
+					y += (int)Math.round(pitch/3.0*Math.sin(2*Math.PI*i/12)+pitch/6.0*Math.cos(2*Math.PI*j/15))+random.nextInt(jitter/3+1)-jitter/6;
+				}
+				else {
+					x += random.nextInt(2*jitter+1)-jitter;
+					y += random.nextInt(2*jitter+1)-jitter;
+				}
+				TMA.addPoint(x, y);
+				truth.put(((long)x<<32)^(y&0xffffffffL), i*height+j);
+				columnUsed[i] = true;
+				rowUsed[j] = true;
+			}
+		}
+		truthKnown = !pointCase.equals("halfway") && !pointCase.equals("extra_cores");
+		for (boolean used : columnUsed) {
+			truthKnown = truthKnown && used;
+		}
+		for (boolean used : rowUsed) {
+			truthKnown = truthKnown && used;
+		}
+		if (pointCase.equals("extra_cores")) {
+			for (int extra=0; extra<1+random.nextInt(3); extra++) {
+				TMA.addPoint(100+random.nextInt(width*pitch), 100+random.nextInt(height*pitch));
+			}
+		}
+		if (TMA.TMAinput.isEmpty()) {
+			TMA.addPoint(100, 100);
+		}
+		return TMA;
+	}
+
+	// A later serial section: the cores of an earlier section (a jittered case matched by Munkres) shifted by a few
+	// pitches, turned by up to 3 degrees and jittered by up to a tenth of the pitch, with up to one in 8 cores
+	// missing. The earlier result is the reference, and each core belongs in the reference cell it was moved from.
+	private PointMatrix registrationCase(int width, int height, int pitch) {
+		PointMatrix earlier = pointCase("jittered", width, height, pitch);
+		workspace.setDeadline(Long.MAX_VALUE);
+		earlier.TMApositionsHungarian(workspace);
+		int[][][] reference = earlier.getActual();
+		PointMatrix TMA = new PointMatrix("registration");
+		TMA.verbose = false;
+		TMA.setMatrix(width, height);
+		double angle = Math.toRadians(6*random.nextDouble()-3);
+		int shiftX = (1+random.nextInt(3))*pitch+random.nextInt(pitch);
+		int shiftY = (1+random.nextInt(3))*pitch+random.nextInt(pitch);
+		int jitter = pitch/10;
+		int missing = 0;
+		truth.clear();
+		for (int i=0; i<width; i++) {
+			for (int j=0; j<height; j++) {
+				if (random.nextInt(8)==0 && missing<width*height/8) {
+					missing++;
+					continue;
+				}
+				double x = reference[i][j][0]-100;
+				double y = reference[i][j][1]-100;
+				int movedX = 100+shiftX+(int)Math.round(x*Math.cos(angle)-y*Math.sin(angle))+random.nextInt(2*jitter+1)-jitter;
+				int movedY = 100+shiftY+(int)Math.round(x*Math.sin(angle)+y*Math.cos(angle))+random.nextInt(2*jitter+1)-jitter;
+				TMA.addPoint(movedX, movedY);
+				truth.put(((long)movedX<<32)^(movedY&0xffffffffL), i*height+j);
+			}
+		}
+		TMA.setReference(reference);
+		truthKnown = true;	// From the reference, wherever the cores are
+		return TMA;
+	}
+
+	// Cell x core costs for a TMA as calculated by setDistances
+	private static int[][] pointCosts(PointMatrix TMA) {
+		int[][] cells = new int[2][TMA.TMAWidth*TMA.TMAHeight];
+		for (int i=0; i<TMA.TMAWidth; i++) {
+			for (int j=0; j<TMA.TMAHeight; j++) {
+				cells[0][i*TMA.TMAHeight+j] = TMA.TMAexpected[i][j][0];
+				cells[1][i*TMA.TMAHeight+j] = TMA.TMAexpected[i][j][1];
+			}
+		}
+		int[][] cores = new int[2][TMA.TMAinput.size()];
+		for (int p=0; p<cores[0].length; p++) {
+			cores[0][p] = TMA.TMAinput.get(p)[0];
+			cores[1][p] = TMA.TMAinput.get(p)[1];
+		}
+		HungarianMatch distances = new HungarianMatch();
+		distances.setDistances(cells, cores);
+		return copy(distances.distanceMatrix);
+	}
+
+	// Minimum total cost of assigning every row or every column (whichever is fewer), by dynamic programming
+	// over the subsets of the larger side
+	static long bruteForce(int[][] cost) {
+		int rows = cost.length;
+		int cols = cost[0].length;
+		if (rows>cols) {
+			int[][] transposed = new int[cols][rows];
+			for (int r=0; r<rows; r++) {
+				for (int c=0; c<cols; c++) {
+					transposed[c][r] = cost[r][c];
+				}
+			}
+			return bruteForce(transposed);
+		}
+		// best[mask] = lowest cost of assigning the first bitCount(mask) rows to the columns in mask
+		long[] best = new long[1<<cols];
+		Arrays.fill(best, Long.MAX_VALUE);
+		best[0] = 0;
+		long optimal = Long.MAX_VALUE;
+		for (int mask=0; mask<best.length; mask++) {
+			if (best[mask]==Long.MAX_VALUE) {
+				continue;
+			}
+			int row = Integer.bitCount(mask);
+			if (row==rows) {
+				optimal = Math.min(optimal, best[mask]);
+				continue;
+			}
+			for (int c=0; c<cols; c++) {
+				if ((mask&(1<<c))==0) {
+					best[mask|(1<<c)] = Math.min(best[mask|(1<<c)], best[mask]+cost[row][c]);
+				}
+			}
+		}
+		return optimal;
+	}
+
+	// Minimum total cost by Munkres, for sizes too big for the brute force
+	private long munkres(int[][] cost) {
+		workspace.setDeadline(Long.MAX_VALUE);
+		workspace.setMatrix(copy(cost));
+		workspace.addFakePoints();
+		workspace.calcMatrices();
+		int[] assignment = workspace.getAssignments();
+		long total = 0;
+		for (int r=0; r<cost.length && r<assignment.length; r++) {
+			if (assignment[r]!=Integer.MAX_VALUE && assignment[r]<cost[0].length) {
+				total += cost[r][assignment[r]];
+			}
+		}
+		return total;
+	}
+
+	private static int[][] copy(int[][] matrix) {
+		int[][] copy = new int[matrix.length][];
+		for (int r=0; r<matrix.length; r++) {
+			copy[r] = matrix[r].clone();
+		}
+		return copy;
+	}
+
+	// Bytes allocated by this thread so far (-1 if the JVM doesn't support measuring it)
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	// Main function
+	public static void main(String[] args) throws IOException {
+		String reportName = "solver_check.csv";
+		int largest = 2000;
+		long seed = 1;
+		if (args.length>0) {reportName = args[0];}
+		if (args.length>1) {largest = Integer.parseInt(args[1]);}
+		if (args.length>2) {seed = Long.parseLong(args[2]);}
+		PrintWriter report = new PrintWriter(new FileWriter(reportName));
+		TMASolverCheck check = new TMASolverCheck(report, seed);
+		long start = System.nanoTime();
+		check.checkMatrices();
+		check.checkPoints();
+		System.out.println("Conformance: "+(check.runs-check.failures)+" of "+check.runs+" runs passed");
+		check.checkScaling(largest);
+		report.close();
+		System.out.println("Finished "+check.runs+" runs ("+check.failures+" failed) in "+String.format("%.1f", (System.nanoTime()-start)/1e9)+" seconds, report saved to "+reportName);
+		if (check.failures>0) {
+			System.exit(1);
+		}
+	}
+}
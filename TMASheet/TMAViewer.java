@@ -0,0 +1,337 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Zoomable view of a matched TMA for checking the alignment without reading the .tsv files.
+ * Draws the cores (grey if unassigned, red if further than half the core spacing from their cell), the expected
+ * positions and a line from each core to its cell.
+ * The view is drawn into a cached image which is only redrawn when the view changes (while dragging the image is
+ * just moved, and redrawn when the mouse is released), and only the cores inside
+ * the view are drawn (found with a PointIndex). The detail depends on the zoom: when zoomed out each core is a
+ * single pixel, then a small square with only the misplaced cores' lines, and the expected positions and every
+ * line are only drawn once few enough cores are visible. Arrays of 100,000+ cores can then still be panned and
+ * zoomed smoothly.
+ *
+ * How to use:
+ * - TMAViewer.show(TMAs)	(window with a list of the TMAs, after matching)
+ * Or add the panel to another window:
+ * - TMAViewer viewer = new TMAViewer(infoLabel); viewer.setTMA(TMA)
+ * Drag to pan, mouse wheel to zoom, click a core to show its file name and distance from its cell.
+ */
+
+class TMAViewer extends JPanel {
+	private static final long serialVersionUID = 1L;
+	static final int POINT_SPACING = 6;		// Screen pixels between cores below which each core is a single pixel
+	static final int DETAIL_SPACING = 20;		// Screen pixels between cores needed to draw the full detail
+	static final int CLICK_RADIUS = 10;		// Screen pixels a click can be from a core
+	static final Color ASSIGNED = new Color(0,140,0);	// Core colour when close to its cell
+
+	PointMatrix TMA;
+	JLabel infoLabel;
+	// Cores and their assignment
+	int[] coreX = new int[0];
+	int[] coreY = new int[0];
+	int[] coreCell;			// Cell number (i*TMAHeight+j) of each core, -1 if unassigned
+	double[] residual;		// Distance from each core to its cell's expected position
+	double spacing = 1;		// Median distance between neighbouring expected positions
+	PointIndex coreIndex;
+	// View (screen = (image-offset)*scale)
+	double scale = 1;
+	double offsetX = 0;
+	double offsetY = 0;
+	BufferedImage cache;
+	boolean cacheValid = false;
+	int dragShiftX = 0;		// Screen pixels the cached image has been dragged since it was drawn
+	int dragShiftY = 0;
+	int selected = -1;
+	Point dragStart;
+
+	public TMAViewer(JLabel infoLabel) {
+		this.infoLabel = infoLabel;
+		setBackground(Color.WHITE);
+		setPreferredSize(new Dimension(800,600));
+		MouseAdapter mouse = new MouseAdapter(){
+			public void mousePressed(MouseEvent e){dragStart = e.getPoint();}
+			public void mouseDragged(MouseEvent e){
+				int dx = e.getX()-dragStart.x;
+				int dy = e.getY()-dragStart.y;
+				offsetX -= dx/scale;
+				offsetY -= dy/scale;
+				dragStart = e.getPoint();
+				dragShiftX += dx;	// Move the cached image rather than drawing every core again
+				dragShiftY += dy;
+				repaint();
+			}
+			public void mouseReleased(MouseEvent e){
+				if (dragShiftX!=0 || dragShiftY!=0) {
+					redraw();	// Fill in the edges the dragged image doesn't cover
+				}
+			}
+			public void mouseClicked(MouseEvent e){select(e.getX(), e.getY());}
+			public void mouseWheelMoved(MouseWheelEvent e){zoom(e.getX(), e.getY(), Math.pow(1.25, -e.getPreciseWheelRotation()));}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+		addComponentListener(new ComponentAdapter(){public void componentResized(ComponentEvent e){redraw();}});
+	}
+
+	// Show a matched TMA, zoomed to fit
+	public void setTMA(PointMatrix TMA) {
+		this.TMA = TMA;
+		int count = TMA.TMAinput.size();
+		coreX = new int[count];
+		coreY = new int[count];
+		coreCell = new int[count];
+		residual = new double[count];
+		// Cell for each core from the result grid (keyed by position, as the grid holds the core co-ordinates)
+		int[][][] actual = TMA.getActual();
+		int[][][] expected = TMA.getExpected();
+		HashMap<Long,Integer> cells = new HashMap<Long,Integer>();
+		for (int i=0; i<TMA.getWidth(); i++) {
+			for (int j=0; j<TMA.getHeight(); j++) {
+				if (actual[i][j][0]!=0 || actual[i][j][1]!=0) {
+					cells.put(key(actual[i][j][0], actual[i][j][1]), i*TMA.getHeight()+j);
+				}
+			}
+		}
+		for (int p=0; p<count; p++) {
+			coreX[p] = TMA.TMAinput.get(p)[0];
+			coreY[p] = TMA.TMAinput.get(p)[1];
+			Integer cell = cells.get(key(coreX[p], coreY[p]));
+			coreCell[p] = (cell==null) ? -1 : cell;
+			if (cell!=null) {
+				int[] cellPosition = expected[cell/TMA.getHeight()][cell%TMA.getHeight()];
+				residual[p] = Math.hypot(coreX[p]-cellPosition[0], coreY[p]-cellPosition[1]);
+			}
+		}
+		coreIndex = new PointIndex(coreX, coreY);
+		spacing = expectedSpacing(expected);
+		selected = -1;
+		infoLabel.setText(TMA.TMAname+": "+count+" cores, "+TMA.getWidth()+" by "+TMA.getHeight()+" grid, matched by "+TMA.matchedBy+" (click a core for details)");
+		zoomToFit();
+	}
+
+	public void zoomToFit() {
+		if (coreX.length==0 || getWidth()==0) {
+			redraw();
+			return;
+		}
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int p=0; p<coreX.length; p++) {
+			minX = Math.min(minX, coreX[p]);
+			minY = Math.min(minY, coreY[p]);
+			maxX = Math.max(maxX, coreX[p]);
+			maxY = Math.max(maxY, coreY[p]);
+		}
+		double margin = spacing;
+		scale = Math.min(getWidth()/(maxX-minX+2*margin), getHeight()/(maxY-minY+2*margin));
+		offsetX = (minX+maxX)/2.0-getWidth()/2.0/scale;
+		offsetY = (minY+maxY)/2.0-getHeight()/2.0/scale;
+		redraw();
+	}
+
+	// Zoom by factor keeping the point under the mouse still
+	void zoom(int screenX, int screenY, double factor) {
+		double imageX = offsetX+screenX/scale;
+		double imageY = offsetY+screenY/scale;
+		scale = scale*factor;
+		offsetX = imageX-screenX/scale;
+		offsetY = imageY-screenY/scale;
+		redraw();
+	}
+
+	// Closest core to a click (using the index), shown in the info label
+	void select(int screenX, int screenY) {
+		if (coreIndex==null) {
+			return;
+		}
+		int imageX = (int)Math.round(offsetX+screenX/scale);
+		int imageY = (int)Math.round(offsetY+screenY/scale);
+		int core = coreIndex.nearest(imageX, imageY);
+		if (core==-1 || Math.sqrt(coreIndex.distanceSquared(core, imageX, imageY))*scale>CLICK_RADIUS) {
+			selected = -1;
+			infoLabel.setText(TMA.TMAname+": no core at "+imageX+","+imageY);
+		}
+		else {
+			selected = core;
+			String cell = "unassigned";
+			if (coreCell[core]!=-1) {
+				cell = "cell "+(coreCell[core]/TMA.getHeight())+","+(coreCell[core]%TMA.getHeight())+" residual "+String.format("%.1f", residual[core])+" pixels";
+			}
+			infoLabel.setText(TMA.TMAfiles.get(core)+" ("+coreX[core]+","+coreY[core]+") "+cell);
+		}
+		repaint();		// The selection is drawn over the cached image, no need to redraw it
+	}
+
+	void redraw() {
+		cacheValid = false;
+		repaint();
+	}
+
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if (TMA==null || getWidth()==0 || getHeight()==0) {
+			return;
+		}
+		if (!cacheValid || cache.getWidth()!=getWidth() || cache.getHeight()!=getHeight()) {
+			render();
+		}
+		g.drawImage(cache, dragShiftX, dragShiftY, null);
+		if (selected!=-1) {
+			g.setColor(Color.MAGENTA);
+			int x = screenX(coreX[selected]);
+			int y = screenY(coreY[selected]);
+			g.drawOval(x-CLICK_RADIUS, y-CLICK_RADIUS, 2*CLICK_RADIUS, 2*CLICK_RADIUS);
+		}
+	}
+
+	// Draw the visible part of the TMA into the cached image
+	private void render() {
+		if (cache==null || cache.getWidth()!=getWidth() || cache.getHeight()!=getHeight()) {
+			cache = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+		}
+		int width = cache.getWidth();
+		int height = cache.getHeight();
+		Graphics2D g = cache.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		// Cores within a core spacing of the view (so lines to cells just off screen are still drawn)
+		int margin = (int)Math.ceil(spacing);
+		int[] visible = coreIndex.inside((int)Math.floor(offsetX)-margin, (int)Math.floor(offsetY)-margin, (int)Math.ceil(offsetX+width/scale)+margin, (int)Math.ceil(offsetY+height/scale)+margin);
+		if (spacing*scale<POINT_SPACING) {
+			// Zoomed out: one pixel per core written straight into the image's pixel array
+			int[] pixels = ((DataBufferInt)cache.getRaster().getDataBuffer()).getData();
+			for (int p : visible) {
+				int x = screenX(coreX[p]);
+				int y = screenY(coreY[p]);
+				if (x>=0 && y>=0 && x<width && y<height) {
+					pixels[y*width+x] = coreColour(p).getRGB();
+				}
+			}
+		}
+		else if (spacing*scale<DETAIL_SPACING) {
+			// Part way: small squares, and lines only for the cores which are far from their cell
+			int[][][] expected = TMA.getExpected();
+			g.setColor(Color.RED);
+			for (int p : visible) {
+				if (coreCell[p]!=-1 && residual[p]>spacing/2) {
+					int[] cellPosition = expected[coreCell[p]/TMA.getHeight()][coreCell[p]%TMA.getHeight()];
+					g.drawLine(screenX(coreX[p]), screenY(coreY[p]), screenX(cellPosition[0]), screenY(cellPosition[1]));
+				}
+			}
+			for (int p : visible) {
+				g.setColor(coreColour(p));
+				g.fillRect(screenX(coreX[p])-1, screenY(coreY[p])-1, 3, 3);
+			}
+		}
+		else {
+			int radius = (int)Math.max(2, Math.min(spacing*scale/4, 12));
+			int[][][] expected = TMA.getExpected();
+			// Lines from each core to its expected position
+			g.setColor(Color.LIGHT_GRAY);
+			for (int p : visible) {
+				if (coreCell[p]!=-1) {
+					int[] cellPosition = expected[coreCell[p]/TMA.getHeight()][coreCell[p]%TMA.getHeight()];
+					g.drawLine(screenX(coreX[p]), screenY(coreY[p]), screenX(cellPosition[0]), screenY(cellPosition[1]));
+				}
+			}
+			// Expected positions (crosses)
+			g.setColor(Color.BLUE);
+			for (int i=0; i<TMA.getWidth(); i++) {
+				for (int j=0; j<TMA.getHeight(); j++) {
+					int x = screenX(expected[i][j][0]);
+					int y = screenY(expected[i][j][1]);
+					if (x>=-radius && y>=-radius && x<width+radius && y<height+radius) {
+						g.drawLine(x-radius/2, y, x+radius/2, y);
+						g.drawLine(x, y-radius/2, x, y+radius/2);
+					}
+				}
+			}
+			// Cores
+			for (int p : visible) {
+				g.setColor(coreColour(p));
+				g.drawOval(screenX(coreX[p])-radius, screenY(coreY[p])-radius, 2*radius, 2*radius);
+			}
+		}
+		g.dispose();
+		cacheValid = true;
+		dragShiftX = 0;
+		dragShiftY = 0;
+	}
+
+	private Color coreColour(int core) {
+		if (coreCell[core]==-1) {
+			return Color.GRAY;
+		}
+		if (residual[core]>spacing/2) {
+			return Color.RED;
+		}
+		return ASSIGNED;
+	}
+
+	int screenX(int imageX) {
+		return (int)Math.round((imageX-offsetX)*scale);
+	}
+	int screenY(int imageY) {
+		return (int)Math.round((imageY-offsetY)*scale);
+	}
+
+	private static long key(int x, int y) {
+		return ((long)x<<32)^(y&0xffffffffL);
+	}
+
+	// Median distance between neighbouring expected positions along the rows and columns
+	private static double expectedSpacing(int[][][] expected) {
+		double[] distances = new double[expected.length*expected[0].length*2];
+		int count = 0;
+		for (int i=0; i<expected.length; i++) {
+			for (int j=0; j<expected[i].length; j++) {
+				if (i+1<expected.length) {
+					distances[count++] = Math.hypot(expected[i+1][j][0]-expected[i][j][0], expected[i+1][j][1]-expected[i][j][1]);
+				}
+				if (j+1<expected[i].length) {
+					distances[count++] = Math.hypot(expected[i][j+1][0]-expected[i][j][0], expected[i][j+1][1]-expected[i][j][1]);
+				}
+			}
+		}
+		if (count==0) {
+			return 1;
+		}
+		Arrays.sort(distances, 0, count);
+		return Math.max(1, distances[count/2]);
+	}
+
+	// Window with a list of TMAs and the viewer
+	public static void show(final HashMap<String,PointMatrix> TMAs) {
+		JFrame viewFrame = new JFrame("TMA alignment");
+		JLabel infoLabel = new JLabel(" ");
+		final TMAViewer viewer = new TMAViewer(infoLabel);
+		String[] names = TMAs.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		final JComboBox<String> TMAlist = new JComboBox<String>(names);
+		JButton fitButton = new JButton("Zoom to fit");
+		JPanel topPanel = new JPanel();
+		topPanel.add(new JLabel("TMA: "));
+		topPanel.add(TMAlist);
+		topPanel.add(fitButton);
+		viewFrame.add(topPanel, BorderLayout.NORTH);
+		viewFrame.add(viewer, BorderLayout.CENTER);
+		viewFrame.add(infoLabel, BorderLayout.SOUTH);
+		TMAlist.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){viewer.setTMA(TMAs.get((String)TMAlist.getSelectedItem()));}});
+		fitButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){viewer.zoomToFit();}});
+		viewFrame.pack();
+		viewFrame.setVisible(true);
+		if (names.length>0) {
+			viewer.setTMA(TMAs.get(names[0]));
+		}
+	}
+}
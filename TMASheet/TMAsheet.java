@@ -27,19 +27,28 @@ public class TMAsheet {
 	File saveFolder;
 	JSpinner heightSpinner;
 	JSpinner widthSpinner;
+	JSpinner duplicateSpinner;
+	JSpinner memorySpinner;
 	JCheckBox sameSizeCheck;
 	JCheckBox autoRotateCheck;
+	JCheckBox streamCheck;
+	JCheckBox referenceCheck;
+	JCheckBox outlierCheck;
 	JLabel statusLabel;
 	JRadioButton exactRadio;
 	JRadioButton hungarianRadio;
+	JRadioButton greedyRadio;
+	JRadioButton autoRadio;
+	JRadioButton latticeRadio;
 	HashMap<String,PointMatrix> TMAs;
+	static final int MANIFEST_SKIPS_LISTED = 10;	// Manifest lines without coordinates printed before just counting them
 
 	// Functions for a very minimalistic user interface (as windows doesn't show the console by default)
 	public static File TMAsource() {
 		File srcFolder = new File("PlaceHolder");
 		// Prompt user for the location of the TMA images
 		JFileChooser SrcPrompt = new JFileChooser();
-		SrcPrompt.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		SrcPrompt.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);	// Folder of images or a coordinate manifest file
 		Integer SrcPromptVal = SrcPrompt.showOpenDialog(null);
 		if (SrcPromptVal == JFileChooser.APPROVE_OPTION) {
 	        srcFolder = SrcPrompt.getSelectedFile();
@@ -56,13 +65,29 @@ public class TMAsheet {
 		for (String i : TMAs.keySet()) {
 			int Height = Integer.parseInt(JOptionPane.showInputDialog("TMA '"+i+"' height:",10));
 			int Width = Integer.parseInt(JOptionPane.showInputDialog("TMA '"+i+"' width:",10));
-			TMAs.get(i).setMatrix(Height,Width);
+			TMAs.get(i).setMatrix(Width,Height);
 		}
 		return TMAs;
 	}
 
+	public static File TMAreference() {
+		File refFolder = null;
+		// Prompt the user for the folder of results from an earlier section
+		JFileChooser RefPrompt = new JFileChooser();
+		RefPrompt.setDialogTitle("Select folder with the earlier section's results");
+		RefPrompt.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		Integer RefPromptVal = RefPrompt.showOpenDialog(null);
+		if (RefPromptVal == JFileChooser.APPROVE_OPTION) {
+	        refFolder = RefPrompt.getSelectedFile();
+	        System.out.println("Setting reference folder to: "+refFolder);
+	    } else {
+	        System.out.println("Action cancelled by user");
+		}
+		return refFolder;
+	}
+
 	public static File TMAsave() {
-		File outFolder = new File("PlaceHolder");
+		File outFolder = null;	// Stays null if cancelled
 		// Prompt the user for the location to save the files to
 		JFileChooser OutPrompt = new JFileChooser();
 		OutPrompt.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -81,59 +106,137 @@ public class TMAsheet {
 	public static HashMap<String,PointMatrix> parseFolder(File srcFolder) {
 		// Scan the source folder and compile a datastructure to represent the locations and positions.
 		String[] fileNames;
-		int Xcoord;
-		int Ycoord;
-		String TMAname;
 		HashMap<String,PointMatrix> TMAlist = new HashMap<String, PointMatrix>();
 		Pattern pattern = Pattern.compile("\\[\\d*,\\d*\\]", Pattern.CASE_INSENSITIVE);
 		// - Get all the file names with the following pattern: string[int,int]string
 		fileNames = srcFolder.list();
+		Arrays.sort(fileNames);		// The listing order isn't defined, sorted so reruns give the same results
 		for (String FileName : fileNames) {
-			Matcher matcher = pattern.matcher(FileName);
-			boolean matchFound = matcher.find();
-			//System.out.println(FileName+" valid TMA file? "+matchFound); // Uncomment to test the regular expression matching.
-			if (matchFound){
-				// Parse the filename if valid
-				String[] TMAnameParts = FileName.split("\\[|\\]");
-				TMAname = TMAnameParts[0];
-				String[] TMAcoord = TMAnameParts[1].split(",");
-				Xcoord= Integer.parseInt(TMAcoord[0]);
-				Ycoord= Integer.parseInt(TMAcoord[1]);
-				//System.out.println("TMA: "+TMAname+" X: "+Xcoord+" Y: "+Ycoord); // Uncomment to view the information parsed from the files
-				// Store the values
-				if (!TMAlist.containsKey(TMAname)){
-					// Add TMA entry to HashMap
-					PointMatrix newMatrix = new PointMatrix(TMAname);
-					TMAlist.put(TMAname,newMatrix);
+			parseFileName(TMAlist, pattern, FileName);
+		}
+		// Return the objects
+		return TMAlist;
+	}
+
+	private static boolean parseFileName(HashMap<String,PointMatrix> TMAlist, Pattern pattern, String FileName) {
+		// Add the point from a single file name to the TMA list (returns false if the name doesn't contain coordinates)
+		int Xcoord;
+		int Ycoord;
+		String TMAname;
+		Matcher matcher = pattern.matcher(FileName);
+		boolean matchFound = matcher.find();
+		//System.out.println(FileName+" valid TMA file? "+matchFound); // Uncomment to test the regular expression matching.
+		if (matchFound){
+			// Parse the filename if valid
+			String[] TMAnameParts = FileName.split("\\[|\\]");
+			TMAname = TMAnameParts[0];
+			String[] TMAcoord = TMAnameParts[1].split(",");
+			Xcoord= Integer.parseInt(TMAcoord[0]);
+			Ycoord= Integer.parseInt(TMAcoord[1]);
+			//System.out.println("TMA: "+TMAname+" X: "+Xcoord+" Y: "+Ycoord); // Uncomment to view the information parsed from the files
+			// Store the values
+			addPoint(TMAlist, TMAname, Xcoord, Ycoord, FileName);
+		}
+		return matchFound;
+	}
+
+	private static void addPoint(HashMap<String,PointMatrix> TMAlist, String TMAname, int Xcoord, int Ycoord, String source) {
+		if (!TMAlist.containsKey(TMAname)){
+			// Add TMA entry to HashMap
+			PointMatrix newMatrix = new PointMatrix(TMAname);
+			TMAlist.put(TMAname,newMatrix);
+		}
+		// Add values to the HashMap
+		PointMatrix CurrentTMA = TMAlist.get(TMAname);
+		CurrentTMA.addPoint(Xcoord,Ycoord,source);
+	}
+
+	public static HashMap<String,PointMatrix> parseManifest(File manifest) throws IOException {
+		// Read the coordinates from a single manifest file instead of listing a directory (much faster on network drives).
+		// Each line is either "name,x,y" (comma or tab separated, decimal coordinates are rounded) or a scanner export line
+		// containing a file name in the string[int,int]string format.
+		// Lines which match neither (headers, comments) are skipped and listed on the console.
+		HashMap<String,PointMatrix> TMAlist = new HashMap<String, PointMatrix>();
+		Pattern pattern = Pattern.compile("\\[\\d*,\\d*\\]", Pattern.CASE_INSENSITIVE);
+		Pattern csvPattern = Pattern.compile("^\\s*([^,\\t]*)[,\\t]\\s*(-?(?:\\d+\\.?\\d*|\\.\\d+))\\s*[,\\t]\\s*(-?(?:\\d+\\.?\\d*|\\.\\d+))\\s*$");
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"), 1<<20);	// Large buffer, the file is read once from start to end
+		String line;
+		int lineNumber = 0;
+		int skipped = 0;
+		try {
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				String fileName = line.substring(Math.max(line.lastIndexOf('/'),line.lastIndexOf('\\'))+1);	// Remove any folder from the path
+				if (parseFileName(TMAlist, pattern, fileName)) {
+					continue;
+				}
+				Matcher matcher = csvPattern.matcher(line);
+				if (matcher.find()) {
+					addPoint(TMAlist, matcher.group(1).trim(), (int)Math.round(Double.parseDouble(matcher.group(2))), (int)Math.round(Double.parseDouble(matcher.group(3))), line.trim());
+				}
+				else if (!line.trim().isEmpty()) {
+					skipped++;
+					if (skipped<=MANIFEST_SKIPS_LISTED) {
+						System.out.println("Skipped line "+lineNumber+" of "+manifest+" (no coordinates found): "+line.trim());
+					}
 				}
-				// Add values to the HashMap
-				PointMatrix CurrentTMA = TMAlist.get(TMAname);
-				CurrentTMA.addPoint(Xcoord,Ycoord);
 			}
+		} finally {
+			reader.close();
+		}
+		if (skipped>MANIFEST_SKIPS_LISTED) {
+			System.out.println("Skipped "+skipped+" lines without coordinates in "+manifest+" (first "+MANIFEST_SKIPS_LISTED+" listed)");
 		}
-		// Return the objects
 		return TMAlist;
 	}
 
+	public static HashMap<String,PointMatrix> parseSource(File source) throws IOException {
+		// Use the manifest reader if given a file, otherwise list the folder
+		if (source.isFile()) {
+			return parseManifest(source);
+		}
+		return parseFolder(source);
+	}
+
+	public static HashMap<String,PointMatrix> parseSource(File source, double duplicateRadius) throws IOException {
+		return parseSource(source, duplicateRadius, false);
+	}
+
+	public static HashMap<String,PointMatrix> parseSource(File source, double duplicateRadius, boolean removeOutliers) throws IOException {
+		// As above, then merge cores closer together than duplicateRadius (0 to keep every core)
+		// and optionally remove points which don't fit the grid
+		HashMap<String,PointMatrix> TMAlist = parseSource(source);
+		for (String TMAname : TMAlist.keySet()) {
+			cleanPoints(TMAlist.get(TMAname), duplicateRadius, removeOutliers);
+		}
+		return TMAlist;
+	}
+
+	public static void cleanPoints(PointMatrix TMA, double duplicateRadius, boolean removeOutliers) {
+		// The duplicate and outlier steps of parseSource for a single TMA
+		if (duplicateRadius>0) {
+			int merged = TMA.removeDuplicates(duplicateRadius);
+			if (merged>0) {
+				System.out.println("Merged "+merged+" duplicate cores in "+TMA.TMAname);
+			}
+		}
+		if (removeOutliers) {
+			int removed = TMA.removeOutliers(PointMatrix.OUTLIER_TOLERANCE);
+			if (removed>0) {
+				System.out.println("Removed "+removed+" points which don't fit the grid from "+TMA.TMAname+":");
+				for (String outlier : TMA.TMAoutliers) {
+					System.out.println("  "+outlier.replace('\t', ' '));
+				}
+			}
+		}
+	}
+
 	public static void TMAwrite(String savePath, HashMap<String,PointMatrix> TMAs) {
 		// Write out the TMAs as tsv files:
 		for (String TMAname : TMAs.keySet()){
-			String fileName = savePath+File.separator+TMAname+".tsv";
 			// TODO: Check for existing file and prompt to continue
 			try {
-				FileWriter outputWriter = new FileWriter(fileName);
-				//outputWriter.write("Test");
-				int[][][] outputMatrix = TMAs.get(TMAname).getActual();
-				int TMAHeight = TMAs.get(TMAname).getHeight();
-				int TMAWidth = TMAs.get(TMAname).getWidth();
-				for (int j=0; j<TMAHeight;j++){
-					for (int i=0; i<TMAWidth;i++){
-						outputWriter.write(outputMatrix[i][j][0]+","+outputMatrix[i][j][1]+"\t");
-					}
-					outputWriter.write("\n");
-				}			
-				outputWriter.close();
-				System.out.println("Wrote: "+fileName);
+				TMAwriteFile(savePath, TMAname, TMAs.get(TMAname));
 			} catch (IOException e) {
 				System.out.println("Unexpected error");
 				e.printStackTrace();
@@ -141,6 +244,54 @@ public class TMAsheet {
 		}		
 	}
 
+	public static void TMAwriteFile(String savePath, String TMAname, PointMatrix TMA) throws IOException {
+		// Write out a single TMA as a tsv file:
+		String fileName = savePath+File.separator+TMAname+".tsv";
+		FileWriter outputWriter = new FileWriter(fileName);
+		//outputWriter.write("Test");
+		if (TMA.degraded){
+			outputWriter.write("# DEGRADED: "+TMA.degradedReason+"\n");	// Flag TMAs which should be checked or rerun
+		}
+		TMAwriteGrid(outputWriter, TMA);
+		outputWriter.close();
+		System.out.println("Wrote: "+fileName);
+		if (!TMA.TMAmerged.isEmpty()) {
+			// Record the duplicate files which were merged during parsing
+			String mergedName = savePath+File.separator+TMAname+".merged.tsv";
+			FileWriter mergedWriter = new FileWriter(mergedName);
+			mergedWriter.write("Kept\tMerged\n");
+			for (String merged : TMA.TMAmerged) {
+				mergedWriter.write(merged+"\n");
+			}
+			mergedWriter.close();
+			System.out.println("Wrote: "+mergedName);
+		}
+		if (!TMA.TMAoutliers.isEmpty()) {
+			// Record the points which were removed as not fitting the grid
+			String outlierName = savePath+File.separator+TMAname+".outliers.tsv";
+			FileWriter outlierWriter = new FileWriter(outlierName);
+			outlierWriter.write("Source\tPosition\tNearest core\n");
+			for (String outlier : TMA.TMAoutliers) {
+				outlierWriter.write(outlier+"\n");
+			}
+			outlierWriter.close();
+			System.out.println("Wrote: "+outlierName);
+		}
+	}
+
+	public static void TMAwriteGrid(Writer outputWriter, PointMatrix TMA) throws IOException {
+		// Write a single TMA grid as tab separated "x,y" cells (shared by the file output and the matching service)
+		int[][][] outputMatrix = TMA.getActual();
+		int TMAHeight = TMA.getHeight();
+		int TMAWidth = TMA.getWidth();
+		for (int j=0; j<TMAHeight;j++){
+			for (int i=0; i<TMAWidth;i++){
+				outputWriter.write(outputMatrix[i][j][0]+","+outputMatrix[i][j][1]+"\t");
+			}
+			outputWriter.write("\n");
+		}
+	}
+
     public void closeFunction(){
         System.exit(0);
     }
@@ -155,7 +306,7 @@ public class TMAsheet {
 		 */
 		JFrame myFrame=new JFrame("TMA Spreadsheet Creator");
 		myFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		myFrame.setSize(400,400);
+		myFrame.setSize(400,490);
 		myFrame.setMinimumSize(new Dimension(400,300));
 
 		JPanel mainPanel = new JPanel();
@@ -163,7 +314,7 @@ public class TMAsheet {
         mainPanel.setLayout(new GridLayout(0,1));   // Equal sized elements in grid
 
         // Input:
-        JButton srcButton=new JButton("Select folder with TMA files");
+        JButton srcButton=new JButton("Select folder (or manifest) with TMA files");
 		mainPanel.add(srcButton);//adding button in JFrame
 
         // Options:
@@ -175,21 +326,48 @@ public class TMAsheet {
         sizePanel.add(sizeLabel);
         sizePanel.add(heightSpinner);
         sizePanel.add(widthSpinner);
+        JPanel duplicatePanel = new JPanel();
+        JLabel duplicateLabel=new JLabel("Merge duplicate cores closer than (pixels): ");
+        duplicateSpinner = new JSpinner(new SpinnerNumberModel(0,0,10000,1));   // 0 = keep every core
+        duplicatePanel.add(duplicateLabel);
+        duplicatePanel.add(duplicateSpinner);
+        JPanel memoryPanel = new JPanel();
+        JLabel memoryLabel=new JLabel("Memory for matching (MB): ");
+        memorySpinner = new JSpinner(new SpinnerNumberModel((int)Math.max(1, MatchPlanner.heapBudget>>20),1,1<<20,64));   // Default half the maximum heap
+        memoryPanel.add(memoryLabel);
+        memoryPanel.add(memorySpinner);
 		sameSizeCheck = new JCheckBox("Use the same size for all TMAs", true);
 		autoRotateCheck = new JCheckBox("Apply rotation correction to TMA", true);
+		streamCheck = new JCheckBox("Save each TMA as soon as it is processed", false);
+		referenceCheck = new JCheckBox("Use earlier results as a reference (serial sections)", false);
+		outlierCheck = new JCheckBox("Remove points which don't fit the grid (debris, labels)", false);
         JPanel algorithmPanel = new JPanel();
         JLabel algorithmLabel=new JLabel("Matching algorithm: ");
         hungarianRadio=new JRadioButton("Munkres matching",true);   // Set matching algorithm        
         exactRadio=new JRadioButton("Exact matching");         // Set matching algorithm        
+        greedyRadio=new JRadioButton("Greedy matching");       // Set matching algorithm
+        autoRadio=new JRadioButton("Automatic");               // Set matching algorithm
+        latticeRadio=new JRadioButton("Lattice walk");         // Set matching algorithm
         ButtonGroup matchGroup=new ButtonGroup();
         algorithmPanel.add(hungarianRadio);
         algorithmPanel.add(exactRadio);
+        algorithmPanel.add(greedyRadio);
+        algorithmPanel.add(autoRadio);
+        algorithmPanel.add(latticeRadio);
         matchGroup.add(hungarianRadio);
         matchGroup.add(exactRadio);
+        matchGroup.add(greedyRadio);
+        matchGroup.add(autoRadio);
+        matchGroup.add(latticeRadio);
         mainPanel.add(optionsLabel);
         mainPanel.add(sizePanel);
+        mainPanel.add(duplicatePanel);
+        mainPanel.add(memoryPanel);
 		mainPanel.add(sameSizeCheck);
 		mainPanel.add(autoRotateCheck);
+		mainPanel.add(streamCheck);
+		mainPanel.add(referenceCheck);
+		mainPanel.add(outlierCheck);
         mainPanel.add(algorithmLabel);
         mainPanel.add(algorithmPanel);
 
@@ -208,6 +386,9 @@ public class TMAsheet {
         JButton saveButton=new JButton("Select folder to save results");
 		saveButton.setEnabled(false);
         mainPanel.add(saveButton);//adding button in JFrame
+        JButton viewButton=new JButton("View alignment");
+		viewButton.setEnabled(false);
+        mainPanel.add(viewButton);
 
         // Construct the main frame layout
         JButton closeButton=new JButton("Close");
@@ -219,28 +400,89 @@ public class TMAsheet {
         // Add listeners to the various buttons:
         closeButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){closeFunction();}});
 		srcButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){srcFolder = TMAsource();runButton.setEnabled(true);statusLabel.setText("Input set to "+srcFolder);}});
-		runButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){statusLabel.setText("Processing...");calcFunction(); saveButton.setEnabled(true);}});
-		saveButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){saveFolder = TMAsave();TMAwrite(saveFolder.getPath(),TMAs);statusLabel.setText("Output saved to "+saveFolder);}});
+		runButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){statusLabel.setText("Processing...");calcFunction(); saveButton.setEnabled(true); viewButton.setEnabled(TMAs!=null);}});
+		saveButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){saveFolder = TMAsave();if (saveFolder==null) {return;} TMAwrite(saveFolder.getPath(),TMAs);statusLabel.setText("Output saved to "+saveFolder);}});
+		viewButton.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){TMAViewer.show(TMAs);}});
 		sameSizeCheck.addActionListener(new ActionListener(){public void actionPerformed(ActionEvent e){if(sameSizeCheck.isSelected()) {heightSpinner.setEnabled(true);widthSpinner.setEnabled(true);} else {heightSpinner.setEnabled(false);widthSpinner.setEnabled(false);}}});
 		// Set tool tips:
 		sameSizeCheck.setToolTipText("If unchecked you will be prompted for this information per TMA.");
+		memorySpinner.setToolTipText("TMAs are only matched in parallel while their matrices fit in this much memory (large grids wait for each other).");
+		duplicateSpinner.setToolTipText("Cores scanned more than once (overlapping tiles or re-scans) are merged, 0 keeps every core.");
+		referenceCheck.setToolTipText("Prompts for the folder of results saved from an earlier section of the same block. Cores are aligned to these instead of being matched from scratch.");
+		outlierCheck.setToolTipText("Points without a neighbour a whole number of core spacings away (along the rows, columns or diagonals) are left out of the matching and listed in a .outliers.tsv file.");
+		streamCheck.setToolTipText("Prompts for the output folder first, then matches TMAs in parallel and saves each one when finished (same size TMAs only).");
 		hungarianRadio.setToolTipText("Best possible overall match.");
 		exactRadio.setToolTipText("Best match possible per core (error generated if multiple cores match to the same cell).");
+		greedyRadio.setToolTipText("Closest core/cell pairs assigned first, no cell used twice (much faster than Munkres on large grids).");
+		viewButton.setToolTipText("Shows the cores, expected positions and assignments of each TMA (drag to pan, scroll to zoom, click a core for details).");
+		latticeRadio.setToolTipText("Follows the rows and columns from core to core, for arrays which are warped rather than evenly spaced.");
+		autoRadio.setToolTipText("Chooses an algorithm per TMA from the grid size, alignment and available memory.");
     }
 
 	public void calcFunction(){
+		String algorithm = "hungarian";
+		if (exactRadio.isSelected()){algorithm = "exact";}
+		if (greedyRadio.isSelected()){algorithm = "greedy";}
+		if (autoRadio.isSelected()){algorithm = "auto";}
+		if (latticeRadio.isSelected()){algorithm = "lattice";}
+		MatchPlanner.setHeapBudget(((Integer)memorySpinner.getValue())*(1L<<20));
+		File referenceFolder = null;
+		if (referenceCheck.isSelected()){
+			referenceFolder = TMAreference();
+		}
+		if (streamCheck.isSelected() && sameSizeCheck.isSelected()){
+			// Pipelined mode - match and save in parallel
+			saveFolder = TMAsave();
+			if (saveFolder==null){
+				statusLabel.setText("Not started, no output folder chosen");
+				return;
+			}
+			try {
+				TMAPipeline pipeline = new TMAPipeline(srcFolder, saveFolder, (Integer)heightSpinner.getValue(), (Integer)widthSpinner.getValue(), autoRotateCheck.isSelected(), algorithm, Runtime.getRuntime().availableProcessors());
+				pipeline.duplicateRadius = (Integer)duplicateSpinner.getValue();
+				pipeline.removeOutliers = outlierCheck.isSelected();
+				pipeline.referenceFolder = referenceFolder;
+				TMAs = pipeline.run();
+				if (pipeline.warnings!=""){
+					statusLabel.setText("WARNING - Issues with "+pipeline.warnings);
+				}
+				else {
+					statusLabel.setText("Processed and saved "+pipeline.written.get()+" TMAs to "+saveFolder);
+				}
+			} catch (Exception e) {
+				statusLabel.setText("Processing failed: "+e.getMessage());
+				e.printStackTrace();
+			}
+			return;
+		}
 		// - Return the TMA locations given in the folder
-		TMAs = parseFolder(srcFolder);
+		try {
+			TMAs = parseSource(srcFolder, (Integer)duplicateSpinner.getValue(), outlierCheck.isSelected());
+		} catch (IOException e) {
+			statusLabel.setText("Unable to read "+srcFolder);
+			e.printStackTrace();
+			return;
+		}
 
 		// Configure the matrix size
 		for (String i : TMAs.keySet()) {
 			if (!sameSizeCheck.isSelected()){
 				int Height = Integer.parseInt(JOptionPane.showInputDialog("TMA '"+i+"' height:",10));
 				int Width = Integer.parseInt(JOptionPane.showInputDialog("TMA '"+i+"' width:",10));
-				TMAs.get(i).setMatrix(Height,Width);
+				TMAs.get(i).setMatrix(Width,Height);
 			}
 			else {
-				TMAs.get(i).setMatrix((Integer)heightSpinner.getValue(),(Integer)widthSpinner.getValue());
+				TMAs.get(i).setMatrix((Integer)widthSpinner.getValue(),(Integer)heightSpinner.getValue());
+			}
+		}
+		if (referenceFolder!=null){
+			// Serial sections - the grid size comes from the earlier results
+			try {
+				SectionRegistration.loadReferences(referenceFolder, TMAs);
+			} catch (IOException e) {
+				statusLabel.setText("Unable to read the results in "+referenceFolder);
+				e.printStackTrace();
+				return;
 			}
 		}
 
@@ -251,30 +493,36 @@ public class TMAsheet {
 
 		// For each TMA calculate the positions in a matrix
 		int counter=1;
+		int projectionStart = PointMatrix.projectionTaken.get();
+		GeometryPrior prior = new GeometryPrior();	// The TMAs in a folder share the scanner's rotation and spacing
+		int learners = GeometryPrior.learners(TMAs.keySet()).size();
+		prior.expect(learners);
+		ArrayList<String> TMAnames = new ArrayList<String>(TMAs.keySet());
+		Collections.sort(TMAnames);		// Same order as the batch tools, so the prior is learnt from the same TMAs
 		String failedTMAs = "";
-		for (String i : TMAs.keySet()){
+		for (String i : TMAnames){
 			statusLabel.setText("Processing TMA "+counter+" of "+TMAs.size()+" (may take a minute)");
-			if (autoRotateCheck.isSelected()){TMAs.get(i).expectedMatrix(true);}
-			else {TMAs.get(i).expectedMatrix(false);}
-			//TMAs.get(i).printExpected();
-			if (exactRadio.isSelected()){
-				int failFlag = TMAs.get(i).TMApositionsExact();			// Exact matches (overwriting possible)
-				if (failFlag>0){
-					System.out.println("WARNING: Perfect match not possible for "+i+". Output contains ("+failFlag+") errors.");
-					failedTMAs = i+" ";
-				}
+			TMAs.get(i).prior = prior;
+			int failFlag = TMAs.get(i).match(algorithm, autoRotateCheck.isSelected(), null);	// Exact matches (overwriting possible)
+			if (failFlag>0){
+				System.out.println("WARNING: Perfect match not possible for "+i+". Output contains ("+failFlag+") errors.");
+				failedTMAs = i+" ";
 			}
-			else {
-				TMAs.get(i).TMApositionsHungarian();
+			if (TMAs.get(i).degraded){
+				System.out.println("WARNING: "+i+" degraded - "+TMAs.get(i).degradedReason);
+				failedTMAs = failedTMAs+i+" (degraded) ";
 			}
 			//TMAs.get(i).printActual();
+			if (counter<=learners){
+				prior.learnerFinished();
+			}
 			counter++;
 		}
 		if (failedTMAs!=""){
 			statusLabel.setText("WARNING - Alignment issues with "+failedTMAs);
 		}
 		else {
-			statusLabel.setText("Processed all TMAs");
+			statusLabel.setText("Processed all TMAs ("+(PointMatrix.projectionTaken.get()-projectionStart)+" by projection, "+prior.used.get()+" using the batch geometry)");
 		}
 	}
 
@@ -287,355 +535,3 @@ public class TMAsheet {
 		
 	}
 }
-
-// Class to store the point cloud and related methods
-class PointMatrix{
-	// Edit default matrix size for object here:
-	String TMAname = "Default";
-	int TMAWidth = 10;
-	int TMAHeight = 10;
-	ArrayList<int[]> TMAinput = new ArrayList<int[]>();
-	int[][][] TMAexpected = new int[TMAWidth][TMAHeight][2];
-	int[][][] TMAactual = new int[TMAWidth][TMAHeight][2];
-
-	// Construct the object and set/update the input values
-	public PointMatrix() {
-	}
-	public PointMatrix(String name) {
-		TMAname = name;
-	}
-	// Add data to the object
-	public void setMatrix(int Width, int Height) {
-		TMAWidth=Width;
-		TMAHeight=Height;		
-	}
-	public void addPoint(int X, int Y) {
-		TMAinput.add(new int[] {X, Y});
-	}
-	// Ouput data from the object
-	public void printInput() {
-		System.out.println("TMA name: "+TMAname);	// Values input into the object		
-		System.out.println("TMA size: "+TMAWidth+" by "+TMAHeight);
-		System.out.println("Input points:");
-		for (int[] point : TMAinput){
-			System.out.println(Arrays.toString(point));
-		}
-	}
-	public void printExpected() {
-		System.out.println("Expected TMA layout: ");	// Calculated 'expected' positions
-		for (int j=0; j<TMAHeight;j++){
-			for (int i=0; i<TMAWidth;i++){
-				System.out.print(" "+i+","+j+":"+TMAexpected[i][j][0]+","+TMAexpected[i][j][1]);
-			}
-			System.out.print("\n");
-		}
-	}
-	public void printActual() {
-		System.out.println("Actual TMA layout: ");	// Matched actual positions
-		for (int j=0; j<TMAHeight;j++){
-			for (int i=0; i<TMAWidth;i++){
-				System.out.print(" "+i+","+j+":"+TMAactual[i][j][0]+","+TMAactual[i][j][1]);
-			}
-			System.out.print("\n");
-		}
-	}
-	public int[][][] getActual() {
-		return TMAactual;
-	}
-	public int getHeight() {
-		return TMAHeight;		
-	}
-	public int getWidth() {
-		return TMAWidth;
-	}
-	// Calculations on the object
-	public void expectedMatrix(boolean autoRotate) {
-		// TODO: Apply some form of rotation correction and geometric correction based on the points given.
-		// - Calculate RMSE
-		// - Apply rotation (both directions)
-		// - Check RMSE - if improved apply rotation.
-		// From the max and min X and Y values calculate the expected position of each TMA core
-		// Find the highest and lowest values:
-		ArrayList<Integer> xValues = new ArrayList<Integer>();
-		ArrayList<Integer> yValues = new ArrayList<Integer>();
-		for (int[] points : TMAinput) {
-			xValues.add(points[0]);
-			yValues.add(points[1]);
-		}
-		int minX = Collections.min(xValues);
-		int maxX = Collections.max(xValues);
-		int minY = Collections.min(yValues);
-		int maxY = Collections.max(yValues);
-		// Create a representation of the TMA and plot expected values:
-		//ArrayList<int[]> row = new ArrayList<int[]>();
-		//ArrayList<int[]> matrix = new ArrayList<int[]>();
-		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
-		int curX;
-		int curY;
-		for (int i=0; i<TMAWidth;i++){
-			// Calculate the X value
-			curX = minX+(i*((maxX-minX)/(TMAWidth-1)));
-			for (int j=0; j<TMAHeight;j++){
-				// Calculate the Y value
-				curY = minY+(j*((maxY-minY)/(TMAHeight-1)));
-				// Add X and Y to matrix
-				//System.out.println(i+","+j+"="+curX+","+curY); // Uncomment to test X/Y calculations
-				matrix[i][j][0] = curX;
-				matrix[i][j][1] = curY;
-			}
-		}
-		if (autoRotate){
-			int[][][] matrix2 = autoRotate(matrix);
-			TMAexpected = matrix2;
-		}
-	}
-	// Adjust matrix to correct for minor rotations:
-	private int[][][] autoRotate(int[][][] estimateMatrix){
-		// Automatically rotate the matrix to get the best fit.
-		int[][][] rotatedMatrix = estimateMatrix;
-		ArrayList<int[]> rotatedActual = TMAinput;
-		int currentSize;
-		int newSize;
-		float degrees = 0;	// Correction amount required (can also be used to indicate current direction of rotation)
-		float change = 0.1f;		// Change to make to the current rotation
-		do {
-			// Calculate the actual TMA dimensions
-			ArrayList<Integer> xValues = new ArrayList<Integer>();
-			ArrayList<Integer> yValues = new ArrayList<Integer>();
-			for (int[] points : rotatedActual) {
-				xValues.add(points[0]);
-				yValues.add(points[1]);
-			}
-			int minX = Collections.min(xValues);
-			int maxX = Collections.max(xValues);
-			int minY = Collections.min(yValues);
-			int maxY = Collections.max(yValues);
-			int sizeX = maxX-minX;	// Size needed for checking suitability of fit later.
-			int sizeY = maxY-minY;
-			currentSize = (sizeX+sizeY);
-			System.out.println("Current "+sizeX+" "+sizeY);
-			// Rotate clockwise (unless already started a rotation anticlockwise)
-			newSize=Integer.MAX_VALUE;
-			if (degrees>=0){	// Adjust clockwise
-				// Rotate clockwise
-				ArrayList<int[]> rotatedActualNew = rotate(rotatedActual,change);
-				// Calculate new size
-				int[] gridSize = arraySize(rotatedActualNew);
-				System.out.println("CW "+gridSize[0]+" "+gridSize[1]);
-				newSize=gridSize[2];
-				if (newSize<currentSize){
-					degrees=degrees+change;
-					rotatedActual = rotatedActualNew;
-				}
-			}
-			// Rotate anticlockwise (unless already started a rotation clockwise)
-			if (degrees<=0){
-				// Rotate clockwise
-				ArrayList<int[]> rotatedActualNew  = rotate(rotatedActual,-change);
-				// Calculate new size
-				int[] gridSize = arraySize(rotatedActualNew);
-				System.out.println("AC "+gridSize[0]+" "+gridSize[1]);
-				newSize=gridSize[2];
-				if (newSize<currentSize){
-					degrees=degrees-change;
-					rotatedActual = rotatedActualNew;
-				}
-			}
-			System.out.println("- "+currentSize+" "+newSize);
-		} while(currentSize>newSize);	// Do while the new size is smaller than the previous size
-		System.out.println("TMA is rotated by: "+(-degrees)+" degrees.");
-		System.out.println("Applying correction to estimated positions");
-		// Calculate the starting estimate grid dimensions
-		int minX = Integer.MAX_VALUE;
-		int minY = Integer.MAX_VALUE;
-		int maxX = Integer.MIN_VALUE;
-		int maxY = Integer.MIN_VALUE;
-		for (int i=0; i<TMAWidth;i++){
-			for (int j=0; j<TMAHeight;j++){
-				// Get the smallest X and Y values
-				if (estimateMatrix[i][j][0]<minX){minX=estimateMatrix[i][j][0];}
-				if (estimateMatrix[i][j][1]<minY){minY=estimateMatrix[i][j][1];}
-				if (estimateMatrix[i][j][0]>maxX){maxX=estimateMatrix[i][j][0];}
-				if (estimateMatrix[i][j][1]>maxY){maxY=estimateMatrix[i][j][1];}
-			}
-		}
-		int sizeX = maxX-minX;
-		int sizeY = maxY-minY;
-		int originX = minX+(sizeX/2);
-		int originY = minY+(sizeY/2);
-		System.out.println("Estimate grid starting dimensions: "+sizeX+":"+sizeY+" with centre at "+originX+":"+originY);
-		// Make the correction
-		// Rotate:
-		double angle = Math.toRadians(-degrees);
-		for (int i=0; i<TMAWidth;i++){
-			for (int j=0; j<TMAHeight;j++){
-				double newX = estimateMatrix[i][j][0]-originX;							// Move point to the origin
-				double newY = estimateMatrix[i][j][1]-originY;
-				double newXb = (newX*Math.cos(angle))-(newY*Math.sin(angle));		// Rotate point 
-				double newYb = (newX)*Math.sin(angle)+(newY)*Math.cos(angle);
-				newX = newXb+originX;									// Add the origin to the points
-				newY = newYb+originY;
-				rotatedMatrix[i][j][0]=(int)Math.round(newX);			
-				rotatedMatrix[i][j][1]=(int)Math.round(newY);
-				System.out.print((int)newX+":"+(int)newY+" ");
-			}
-			System.out.print("\n");
-		}
-		// Recheck the estimate size
-		// TODO
-		// Return
-		return rotatedMatrix;
-	}
-	private ArrayList<int[]> rotate(ArrayList<int[]> points, float degrees){
-		ArrayList<int[]> rotatedArray = new ArrayList<int[]>();
-		// Calculate the dimensions
-		ArrayList<Integer> xValues = new ArrayList<Integer>();
-		ArrayList<Integer> yValues = new ArrayList<Integer>();
-		for (int[] point : points) {
-			xValues.add(point[0]);
-			yValues.add(point[1]);
-		}
-		int minX = Collections.min(xValues);
-		int maxX = Collections.max(xValues);
-		int minY = Collections.min(yValues);
-		int maxY = Collections.max(yValues);
-		int sizeX = maxX-minX;
-		int sizeY = maxY-minY;
-		// - Calculate the point to rotate around:
-		double originX = (sizeX/2)+minX;
-		double originY = (sizeY/2)+minY;
-		System.out.println("Origin: "+originX+","+originY);
-		// Rotate:
-		//double angle = degrees*(Math.PI/180);
-		double angle = Math.toRadians(degrees);
-		//double angle = degrees;
-		for (int[] point : points){
-			double newX = point[0]-originX;							// Move point to the origin
-			double newY = point[1]-originY;
-			double newXb = (newX*Math.cos(angle))-(newY*Math.sin(angle));		// Rotate point 
-			double newYb = (newX)*Math.sin(angle)+(newY)*Math.cos(angle);
-			newX = newXb+originX;									// Add the origin to the points
-			newY = newYb+originY;
-			rotatedArray.add(new int[] {(int)Math.round(newX), (int)Math.round(newY)});	// Without Math.round typecast will always round down (causing small changes to Origin)
-		}
-		return rotatedArray;
-	}
-	private int[] arraySize(ArrayList<int[]> points){
-		// Calculate the actual TMA dimensions
-		int[] size = new int[3];
-		ArrayList<Integer> xValues = new ArrayList<Integer>();
-		ArrayList<Integer> yValues = new ArrayList<Integer>();
-		for (int[] point : points) {
-			xValues.add(point[0]);
-			yValues.add(point[1]);
-		}
-		int minX = Collections.min(xValues);
-		int maxX = Collections.max(xValues);
-		int minY = Collections.min(yValues);
-		int maxY = Collections.max(yValues);
-		int sizeX = maxX-minX;	// Size needed for checking suitability of fit later.
-		int sizeY = maxY-minY;
-		size[0] = sizeX;
-		size[1] = sizeY;
-		size[2] = sizeX+sizeY;
-		return size;
-	}
-	// Some TMAs are distorted such that multiple cores share the same closest expected point.
-	// The hungarian algorithm is one solution which (while more complicated) may if implemented come up with an optimal solution.
-	public int TMApositionsExact() {
-		// Calculate distance between 2 points:
-		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
-		int failFlag = 0;
-		for (int[] curPoint :TMAinput){
-			// Find closest point
-			int ClosestX = Integer.MAX_VALUE;
-			int ClosestY = Integer.MAX_VALUE;
-			double distanceCur = Integer.MAX_VALUE;	// Start with furthest possible distance
-			double distanceNew;		// We are using large enough numbers that rounding from double to int should be fine
-			for (int i=0; i<TMAHeight;i++){
-				for (int j=0; j<TMAWidth;j++){
-					distanceNew = Math.hypot(curPoint[0]-TMAexpected[i][j][0],curPoint[1]-TMAexpected[i][j][1]); // distance = Math.hypot(x1-x2, y1-y2)
-					//System.out.println("Testing: "+curPoint[0]+":"+curPoint[1]+" is "+distanceNew+" from "+TMAexpected[i][j][0]+":"+TMAexpected[i][j][1]+" Postion = "+i+":"+j);
-					if (distanceNew<distanceCur){
-						distanceCur = distanceNew;
-						ClosestX = i;
-						ClosestY = j;
-					}					
-				}
-			}
-			// Store the result
-			if (matrix[ClosestX][ClosestY][0]!=0 || matrix[ClosestX][ClosestY][1]!=0){
-				failFlag++;
-			}
-			matrix[ClosestX][ClosestY][0]=curPoint[0];	
-			matrix[ClosestX][ClosestY][1]=curPoint[1];
-
-		}
-		//if (failFlag>0){
-		//	System.out.println("WARNING: Perfect match not possible. Output contains errors. ("+failFlag+")");
-		//}
-		// Return the updated matrix
-		TMAactual = matrix;
-		return failFlag;
-	}
-	// Alternative to the above function which uses the hungarian algorithm to make the assignments
-	public void TMApositionsHungarian() {
-		// Calculate distance between 2 points:
-		HungarianMatch pointCloud = new HungarianMatch();
-		int[] matches;			// Returned value in the format of [a]=b (where a/b is the order of the input, i/j)
-		int[][] actualPoints;		// Arrays in the format of [X][Y] ie. {{x1,x2,x3},{y1,y2,y3}}
-		int[][] estimatedPoints;
-		
-		// Reformat ArrayList<int[]> TMAinput to actualPoints
-		actualPoints = new int[2][TMAinput.size()];
-		int counter = 0;
-		for (int[] point : TMAinput){
-			actualPoints[0][counter]=point[0];	// Add X
-			actualPoints[1][counter]=point[1];	// Add Y
-			counter++;
-		}
-		
-		// Reformat int[][][] TMAexpected to estimatedPoints - TMAexpected[i][j][0/1] (X/Y)
-		estimatedPoints = new int[2][TMAWidth*TMAHeight];
-		counter = 0;
-		for (int i=0;i<TMAHeight;i++){
-			for (int j=0;j<TMAWidth;j++){
-				// Current position = ((i+1)*(j+1))-1
-				estimatedPoints[0][counter]=TMAexpected[i][j][0];
-				estimatedPoints[1][counter]=TMAexpected[i][j][1];
-				counter++;
-			}		
-		}
-		
-		pointCloud.setDistances(estimatedPoints,actualPoints);		// Takes 2 arrays with lists of x/y co-ordinates
-		pointCloud.addFakePoints();		// Algorithm works and produces the same results without this
-		pointCloud.calcMatrices();						// Calculate the matrices
-		matches = pointCloud.getAssignments();				// Return the assignments
-		
-		// Convert the assignments back into a matrix:
-		// - Dimension 1 order is the same as the input array list (Can use newX[matches[i]] = TMAinput.indexOf(i))
-		// - Dimension 2 order is row wise top left to bottom right (Can use newY[matches[i]] = TMAinput.indexOf(i))
-		int[][][] matrix = new int[TMAWidth][TMAHeight][2];
-		counter = 0;
-		for (int i=0;i<TMAHeight;i++){
-			for (int j=0;j<TMAWidth;j++){
-				if (matches[counter]==Integer.MAX_VALUE) {
-					// No assignment made - Due to matrix size difference
-					//System.out.println("No assignment");
-				}
-				else if (matches[counter]>=actualPoints[0].length) {
-					// Matched to dummy worker which doesn't exist
-					//System.out.println("Dummy line ignored");
-				}
-				else {		// If the values are the maximum then no match was found - Ignore
-					matrix[i][j][0]=actualPoints[0][matches[counter]];	// Look up the values in the actualPoints array
-					matrix[i][j][1]=actualPoints[1][matches[counter]];
-				}
-				counter++;
-			}		
-		}		
-		
-		// Return the updated matrix
-		TMAactual = matrix;
-	}
-}